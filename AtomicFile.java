@@ -0,0 +1,46 @@
+// AtomicFile.java - Crash-safe replace and append for the data files
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+// replace() writes a sibling temp file, forces it to disk and renames it over the target, so a
+// reader (or a restart after a crash) sees either the old file or the new one, never a prefix.
+public class AtomicFile {
+    private AtomicFile() {
+    }
+
+    public static void replace(Path target, byte[] content) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, content);
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Appends and forces the content. validLength is where the previous append ended; anything past
+    // it is the torn tail of an append that crashed and is cut off first.
+    public static void append(Path target, byte[] content, long validLength) throws IOException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (channel.size() > validLength) {
+                channel.truncate(validLength);
+            }
+            channel.position(channel.size());
+            writeFully(channel, content);
+            channel.force(true);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+// BatchProcessor.java - Runs a file or stream of circulation and catalogue commands in bulk
+import java.io.*;
+
+// One command per line, in the server's style: a command word, a space, then arguments separated
+// by '|'. Blank lines and lines starting with '#' are skipped.
+//
+//   BORROW userId|bookId           RETURN userId|bookId
+//   ADDBOOK id|title|author        UPDATEBOOK id|title|author        DELETEBOOK id
+//   ADDUSER id|name|password|role  UPDATEUSER id|name|password|role  DELETEUSER id
+//
+// A failing line is reported with its line number and the batch carries on. Lines are committed in
+// chunks of library.batch.size (default 1000): the chunk's journal records share one fsync, and
+// the data files are checkpointed once, after the last line.
+public class BatchProcessor {
+    private static final int CHUNK_SIZE = Math.max(1, Integer.getInteger("library.batch.size", 1000));
+
+    private final LibrarySystem library;
+    private final PrintStream out;
+    private long succeeded;
+    private long failed;
+
+    public BatchProcessor(LibrarySystem library, PrintStream out) {
+        this.library = library;
+        this.out = out;
+    }
+
+    public void run(BufferedReader in) throws IOException {
+        long start = System.nanoTime();
+        long lineNumber = 0;
+        int inChunk = 0;
+        library.beginBatch();
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    execute(line);
+                    succeeded++;
+                } catch (InvalidOperationException | BookUnavailableException e) {
+                    failed++;
+                    out.println("Line " + lineNumber + ": " + e.getMessage() + " [" + line + "]");
+                }
+                if (++inChunk == CHUNK_SIZE) {
+                    library.commitBatch();
+                    inChunk = 0;
+                }
+            }
+        } finally {
+            library.endBatch();
+        }
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        long total = succeeded + failed;
+        out.printf("Batch complete: %d commands, %d succeeded, %d failed in %.2f s (%.0f commands/sec)%n",
+                total, succeeded, failed, seconds, total / seconds);
+    }
+
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    private void execute(String line) throws InvalidOperationException, BookUnavailableException {
+        int space = line.indexOf(' ');
+        String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+        String[] args = space < 0 ? new String[0] : line.substring(space + 1).split("\\|", -1);
+        switch (command) {
+            case "BORROW":
+                requireArgs(args, 2);
+                library.borrowBook(requireUser(args[0]), args[1]);
+                return;
+            case "RETURN":
+                requireArgs(args, 2);
+                library.returnBook(requireUser(args[0]), args[1]);
+                return;
+            case "ADDBOOK":
+                requireArgs(args, 3);
+                library.addBook(args[0], args[1], args[2]);
+                return;
+            case "UPDATEBOOK":
+                requireArgs(args, 3);
+                library.updateBook(args[0], args[1], args[2]);
+                return;
+            case "DELETEBOOK":
+                requireArgs(args, 1);
+                library.deleteBook(args[0]);
+                return;
+            case "ADDUSER":
+                requireArgs(args, 4);
+                library.addUser(args[0], args[1], args[2], args[3]);
+                return;
+            case "UPDATEUSER":
+                requireArgs(args, 4);
+                library.updateUser(args[0], args[1], args[2], args[3]);
+                return;
+            case "DELETEUSER":
+                requireArgs(args, 1);
+                library.deleteUser(null, args[0]);
+                return;
+            default:
+                throw new InvalidOperationException("Unknown command: " + command);
+        }
+    }
+
+    private User requireUser(String id) throws InvalidOperationException {
+        User user = library.findUserById(id);
+        if (user == null) {
+            throw new InvalidOperationException("User not found.");
+        }
+        return user;
+    }
+
+    private static void requireArgs(String[] args, int count) throws InvalidOperationException {
+        if (args.length < count) {
+            throw new InvalidOperationException("Expected " + count + " argument(s) separated by '|'.");
+        }
+    }
+}
@@ -0,0 +1,361 @@
+// BinarySnapshot.java - Compact versioned binary format for the data files
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Consumer;
+
+// A snapshot file is a magic number, a format version, a catalogue block (users and books) and then
+// one or more loan blocks (the transaction sequence and every open loan with its due date). A
+// checkpoint that only lent or returned books appends a loan block, and the last complete one is
+// current. Version 2 loan blocks have no due dates, and version 1 files hold one block with
+// everything. A history file is a series of blocks appended one per
+// checkpoint. Each block is length-prefixed and carries its own string
+// dictionary, so repeated strings (authors, roles, and the user and book IDs on transactions) are
+// stored once and referenced by index. Dates are epoch days and transaction IDs are stored as their
+// number when they use the T%03d form.
+public class BinarySnapshot {
+    private static final int MAGIC = 0x4C494253; // "LIBS"
+    private static final int VERSION = 3;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+
+    public static class State {
+        public final List<User> users = new ArrayList<>();
+        public final List<Book> books = new ArrayList<>();
+        public final List<Transaction> openLoans = new ArrayList<>();
+        public long lastTransactionNumber;
+        // Bytes up to the end of the catalogue block, or -1 for an older version, which cannot take new loan blocks.
+        public long catalogueLength = -1;
+    }
+
+    private BinarySnapshot() {
+    }
+
+    // The header and the catalogue block; a snapshot file is this followed by encodeLoans().
+    public static byte[] encodeCatalogue(List<User> users, List<Book> books) throws IOException {
+        BlockWriter block = new BlockWriter();
+        block.writeCount(users.size());
+        for (User user : users) {
+            block.writeText(user.getId());
+            block.writeText(user.getName());
+            block.writeText(user.getPassword());
+            block.writeRef(user.getRole());
+        }
+        block.writeCount(books.size());
+        for (Book book : books) {
+            block.writeText(book.getBookId());
+            block.writeText(book.getTitle());
+            block.writeRef(book.getAuthor());
+            block.out.writeBoolean(book.isAvailable());
+        }
+        return block.toFile(true);
+    }
+
+    public static byte[] encodeLoans(List<Transaction> openLoans, long lastTransactionNumber) throws IOException {
+        BlockWriter block = new BlockWriter();
+        block.out.writeLong(lastTransactionNumber);
+        writeTransactions(block, openLoans, true);
+        return block.toFile(false);
+    }
+
+    public static State readState(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            int version = checkHeader(in, file);
+            BlockReader block = BlockReader.read(in);
+            State state = new State();
+            try {
+                if (version == 1) {
+                    state.lastTransactionNumber = block.readLong();
+                }
+                for (int i = block.readCount(); i > 0; i--) {
+                    state.users.add(new User(block.readText(), block.readText(), block.readText(), block.readRef()));
+                }
+                for (int i = block.readCount(); i > 0; i--) {
+                    state.books.add(new Book(block.readText(), block.readText(), block.readRef(), block.readBoolean()));
+                }
+                if (version == 1) {
+                    readTransactions(block, state.openLoans::add, false);
+                    return state;
+                }
+                state.catalogueLength = version == VERSION ? 16 + block.length() : -1;
+                while (true) {
+                    try {
+                        block = BlockReader.read(in);
+                    } catch (EOFException e) {
+                        // The end of the file, or a loan block torn by a crash; the one before it stands.
+                        return state;
+                    }
+                    state.lastTransactionNumber = block.readLong();
+                    state.openLoans.clear();
+                    readTransactions(block, state.openLoans::add, version >= 3);
+                }
+            } catch (RuntimeException e) {
+                throw new IOException(file + " is corrupt: " + e, e);
+            }
+        }
+    }
+
+    // One history block; withHeader starts a new history file.
+    public static byte[] encodeHistory(List<Transaction> closed, boolean withHeader) throws IOException {
+        BlockWriter block = new BlockWriter();
+        writeTransactions(block, closed, false);
+        return block.toFile(withHeader);
+    }
+
+    // The length of a snapshot or history file up to the end of its last complete block.
+    public static long validLength(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 8;
+            if (size < position) {
+                return 0;
+            }
+            ByteBuffer length = ByteBuffer.allocate(8);
+            while (position + 8 <= size) {
+                length.clear();
+                if (channel.read(length, position) < 8) {
+                    break;
+                }
+                long end = position + 8 + length.getLong(0);
+                if (end > size || end < position) {
+                    break;
+                }
+                position = end;
+            }
+            return position;
+        }
+    }
+
+    public static void readHistory(Path file, Consumer<Transaction> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            checkHeader(in, file);
+            while (true) {
+                BlockReader block;
+                try {
+                    block = BlockReader.read(in);
+                } catch (EOFException e) {
+                    return;
+                }
+                try {
+                    readTransactions(block, consumer, false);
+                } catch (RuntimeException e) {
+                    throw new IOException(file + " is corrupt: " + e, e);
+                }
+            }
+        }
+    }
+
+    // Open loans carry their due date; closed history does not.
+    private static void writeTransactions(BlockWriter block, List<Transaction> transactions, boolean withDue) throws IOException {
+        block.writeCount(transactions.size());
+        for (Transaction transaction : transactions) {
+            block.writeTransactionId(transaction.getTransactionId());
+            block.writeRef(transaction.getUserId());
+            block.writeRef(transaction.getBookId());
+            block.out.writeInt(toEpochDay(transaction.getDateBorrowed()));
+            block.out.writeInt(toEpochDay(transaction.getDateReturned()));
+            if (withDue) {
+                block.out.writeInt(toEpochDay(transaction.getDateDue()));
+            }
+        }
+    }
+
+    private static void readTransactions(BlockReader block, Consumer<Transaction> consumer, boolean withDue) {
+        for (int i = block.readCount(); i > 0; i--) {
+            String transactionId = block.readTransactionId();
+            String userId = block.readRef();
+            String bookId = block.readRef();
+            String borrowed = block.readDate();
+            String returned = block.readDate();
+            String due = withDue ? block.readDate() : "null";
+            consumer.accept(new Transaction(transactionId, userId, bookId, borrowed, returned, due));
+        }
+    }
+
+    private static int checkHeader(DataInputStream in, Path file) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(file + " is not a library snapshot.");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException(file + " has unsupported format version " + version + ".");
+        }
+        return version;
+    }
+
+    private static int toEpochDay(String date) {
+        return date == null || date.equals("null") ? NO_DATE : (int) LocalDate.parse(date).toEpochDay();
+    }
+
+    // Records are buffered so the dictionary, which is only complete at the end, can be written first.
+    private static class BlockWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        void writeRef(String value) throws IOException {
+            Integer index = dictionary.get(value);
+            if (index == null) {
+                index = strings.size();
+                dictionary.put(value, index);
+                strings.add(value);
+            }
+            writeVarInt(out, index);
+        }
+
+        void writeText(String value) throws IOException {
+            writeString(out, value);
+        }
+
+        void writeCount(int count) throws IOException {
+            writeVarInt(out, count);
+        }
+
+        void writeTransactionId(String transactionId) throws IOException {
+            long number = -1;
+            try {
+                number = TransactionIdAllocator.parse(transactionId);
+            } catch (RuntimeException e) {
+                // Not in T<number> form; stored as text below.
+            }
+            if (number >= 0 && TransactionIdAllocator.format(number).equals(transactionId)) {
+                writeVarLong(out, number + 1);
+            } else {
+                writeVarLong(out, 0);
+                writeString(out, transactionId);
+            }
+        }
+
+        byte[] toFile(boolean withHeader) throws IOException {
+            ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+            DataOutputStream dict = new DataOutputStream(dictionary);
+            writeVarInt(dict, strings.size());
+            for (String value : strings) {
+                writeString(dict, value);
+            }
+            out.flush();
+            ByteArrayOutputStream file = new ByteArrayOutputStream(16 + dictionary.size() + bytes.size());
+            DataOutputStream target = new DataOutputStream(file);
+            if (withHeader) {
+                target.writeInt(MAGIC);
+                target.writeInt(VERSION);
+            }
+            target.writeLong((long) dictionary.size() + bytes.size());
+            dictionary.writeTo(target);
+            bytes.writeTo(target);
+            return file.toByteArray();
+        }
+    }
+
+    // Each block is read whole, then decoded straight from the byte array.
+    private static class BlockReader {
+        private final byte[] bytes;
+        private int position;
+        private final String[] strings;
+        private final Map<Integer, String> dates = new HashMap<>();
+
+        private BlockReader(byte[] bytes) {
+            this.bytes = bytes;
+            this.strings = new String[readCount()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readText();
+            }
+        }
+
+        static BlockReader read(DataInputStream in) throws IOException {
+            long length = in.readLong();
+            if (length < 0 || length > Integer.MAX_VALUE - 8) {
+                throw new IOException("Corrupt block length " + length + ".");
+            }
+            byte[] bytes = new byte[(int) length];
+            in.readFully(bytes);
+            try {
+                return new BlockReader(bytes);
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt string dictionary: " + e, e);
+            }
+        }
+
+        int length() {
+            return bytes.length;
+        }
+
+        String readRef() {
+            return strings[readCount()];
+        }
+
+        String readText() {
+            int length = readCount();
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        int readCount() {
+            return (int) readVarLong();
+        }
+
+        boolean readBoolean() {
+            return bytes[position++] != 0;
+        }
+
+        int readInt() {
+            int value = (bytes[position] & 0xFF) << 24 | (bytes[position + 1] & 0xFF) << 16
+                    | (bytes[position + 2] & 0xFF) << 8 | (bytes[position + 3] & 0xFF);
+            position += 4;
+            return value;
+        }
+
+        long readLong() {
+            return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+        }
+
+        // Loans cluster on a few thousand distinct days, so each date string is built once per block.
+        String readDate() {
+            int epochDay = readInt();
+            return epochDay == NO_DATE ? "null" : dates.computeIfAbsent(epochDay, day -> LocalDate.ofEpochDay(day).toString());
+        }
+
+        String readTransactionId() {
+            long number = readVarLong();
+            return number == 0 ? readText() : TransactionIdAllocator.format(number - 1);
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed variable-length number.");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, utf8.length);
+        out.write(utf8);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,87 @@
+// BloomFilter.java - Fixed-size probabilistic set of strings
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// mightContain() never misses a string that was added; it wrongly reports one that was not at
+// about the false-positive rate the filter was sized for. Each string sets hashCount bits chosen by
+// double hashing of one 64-bit hash.
+public class BloomFilter {
+    private final long[] words;
+    private final long bitCount;
+    private final int hashCount;
+
+    public BloomFilter(long expected, double falsePositiveRate) {
+        long n = Math.max(1, expected);
+        double bits = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        this.bitCount = Math.max(64, Math.min((long) Math.ceil(bits), 1L << 31));
+        this.words = new long[(int) ((bitCount + 63) / 64)];
+        this.hashCount = Math.max(1, (int) Math.round(bitCount / (double) n * Math.log(2)));
+    }
+
+    private BloomFilter(long[] words, long bitCount, int hashCount) {
+        this.words = words;
+        this.bitCount = bitCount;
+        this.hashCount = hashCount;
+    }
+
+    public static BloomFilter readFrom(DataInput in) throws IOException {
+        long bitCount = in.readLong();
+        int hashCount = in.readInt();
+        long[] words = new long[(int) ((bitCount + 63) / 64)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return new BloomFilter(words, bitCount, hashCount);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(bitCount);
+        out.writeInt(hashCount);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    public void add(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) * bitCount >>> 32;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) * bitCount >>> 32;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long sizeInBytes() {
+        return words.length * 8L;
+    }
+
+    // FNV-1a over the characters, finished with the MurmurHash3 64-bit mixer.
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,20 +1,27 @@
 // Book.java
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class Book {
     private String bookId;
     private String title;
     private String author;
-    private boolean available;
+    private final AtomicBoolean available;
     
     public Book(String bookId, String title, String author, boolean available) {
         this.bookId = bookId;
         this.title = title;
         this.author = author;
-        this.available = available;
+        this.available = new AtomicBoolean(available);
     }
     
     public void displayBookDetails() {
-        String status = available ? "Available" : "Borrowed";
-        System.out.println("BookID: " + bookId + " | Title: " + title + " | Author: " + author + " | Status: " + status);
+        System.out.println(this);
+    }
+    
+    @Override
+    public String toString() {
+        String status = available.get() ? "Available" : "Borrowed";
+        return "BookID: " + bookId + " | Title: " + title + " | Author: " + author + " | Status: " + status;
     }
     
     public String getBookId() { 
@@ -30,7 +37,7 @@ public class Book {
     }
     
     public boolean isAvailable() { 
-        return available; 
+        return available.get(); 
     }
     
     public void setTitle(String title) { 
@@ -42,10 +49,15 @@ public class Book {
     }
     
     public void setAvailable(boolean available) { 
-        this.available = available; 
+        this.available.set(available);
+    }
+    
+    // Flips the book from available to borrowed; false if someone else got there first.
+    public boolean tryCheckOut() {
+        return available.compareAndSet(true, false);
     }
     
     public String toFileString() {
-        return bookId + "," + title + "," + author + "," + available;
+        return CsvLoader.format(bookId, title, author, String.valueOf(available.get()));
     }
 }
\ No newline at end of file
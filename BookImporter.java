@@ -0,0 +1,170 @@
+// BookImporter.java - Streams a large CSV of books into the catalogue
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Each line is ID,Title,Author in the books.txt quoting rules. CsvLoader reads the file in chunks
+// and validates rows on several threads; rows then arrive here in file order and are added in
+// batches of library.import.batchSize (default 5000), one write lock and one journal sync each.
+//
+// Duplicate IDs, whether already in the catalogue or earlier in the same file, are found with a
+// Bloom filter holding every ID seen so far. Only IDs it reports as possibly present are looked up
+// in the catalogue index and the pending batch, so the common case of a new ID needs no lookup.
+// Rejected rows are written to the reject file with their record number and reason. Memory is the
+// filter (about 1.2 bytes per ID), CsvLoader's read-ahead window and one batch, whatever the
+// size of the file.
+public class BookImporter {
+    private static final int BATCH_SIZE = Math.max(1, Integer.getInteger("library.import.batchSize", 5000));
+    private static final int MAX_ID_LENGTH = 32;
+    private static final int MAX_TEXT_LENGTH = 256;
+    // Rows shorter than this are unusual, so the file size over it is a safe estimate of the row count.
+    private static final int MIN_ROW_BYTES = 16;
+
+    private final LibrarySystem library;
+    private final PrintStream out;
+    private final List<String[]> batch = new ArrayList<>();
+    private final Map<String, Long> pending = new HashMap<>();
+    private BloomFilter seen;
+    private Writer rejects;
+    private long recordNumber;
+    private long imported;
+    private long invalid;
+    private long duplicates;
+    private long lookups;
+
+    // A validated row, or the reason it was rejected.
+    private static class Row {
+        final String[] fields;
+        final String error;
+
+        Row(String[] fields, String error) {
+            this.fields = fields;
+            this.error = error;
+        }
+    }
+
+    public BookImporter(LibrarySystem library, PrintStream out) {
+        this.library = library;
+        this.out = out;
+    }
+
+    public void run(Path file, Path rejectFile) throws IOException {
+        long start = System.nanoTime();
+        List<Book> existing = library.getBooks();
+        long expected = Long.getLong("library.import.expected", Files.size(file) / MIN_ROW_BYTES);
+        seen = new BloomFilter(existing.size() + expected, 0.01);
+        for (Book book : existing) {
+            seen.add(book.getBookId());
+        }
+
+        library.beginBatch();
+        try (Writer writer = Files.newBufferedWriter(rejectFile, StandardCharsets.UTF_8)) {
+            rejects = writer;
+            CsvLoader.load(file, BookImporter::validate, this::accept);
+            flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            library.endBatch();
+        }
+
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        out.printf("Imported %d of %d records in %.2f s (%.0f records/sec).%n", imported, recordNumber, seconds, recordNumber / seconds);
+        out.printf("Rejected %d invalid and %d duplicate records%s.%n", invalid, duplicates,
+                invalid + duplicates > 0 ? " (see " + rejectFile + ")" : "");
+        out.printf("Bloom filter: %d KB; %d of %d valid records needed an exact lookup.%n",
+                seen.sizeInBytes() >> 10, lookups, recordNumber - invalid);
+    }
+
+    // Only a rejected row keeps the raw fields; they are copied out of the loader's reused view.
+    private static Row validate(CsvLoader.Fields parts) {
+        if (parts.size() != 3) {
+            return new Row(parts.toArray(), "Expected 3 fields (ID,Title,Author), found " + parts.size());
+        }
+        String id = parts.get(0).trim();
+        String title = parts.get(1).trim();
+        String author = parts.get(2).trim();
+        if (id.isEmpty() || title.isEmpty() || author.isEmpty()) {
+            return new Row(parts.toArray(), "ID, title and author are required");
+        }
+        if (id.length() > MAX_ID_LENGTH) {
+            return new Row(parts.toArray(), "ID longer than " + MAX_ID_LENGTH + " characters");
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (Character.isWhitespace(id.charAt(i)) || Character.isISOControl(id.charAt(i))) {
+                return new Row(parts.toArray(), "ID contains whitespace or control characters");
+            }
+        }
+        if (title.length() > MAX_TEXT_LENGTH || author.length() > MAX_TEXT_LENGTH) {
+            return new Row(parts.toArray(), "Title or author longer than " + MAX_TEXT_LENGTH + " characters");
+        }
+        return new Row(new String[] { id, title, author }, null);
+    }
+
+    private void accept(Row row) {
+        recordNumber++;
+        if (row.error != null) {
+            invalid++;
+            reject(recordNumber, row.error, row.fields);
+            return;
+        }
+        String id = row.fields[0];
+        if (seen.mightContain(id)) {
+            lookups++;
+            Long first = pending.get(id);
+            if (first != null) {
+                duplicates++;
+                reject(recordNumber, "Duplicate of record " + first + " in this file", row.fields);
+                return;
+            }
+            if (library.findBookById(id) != null) {
+                duplicates++;
+                reject(recordNumber, "Book ID already exists", row.fields);
+                return;
+            }
+        }
+        seen.add(id);
+        pending.put(id, recordNumber);
+        batch.add(row.fields);
+        if (batch.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // A book added by another session since the lookup comes back as a duplicate.
+        List<String[]> taken;
+        try {
+            taken = library.importBooks(batch);
+            library.commitBatch();
+        } catch (InvalidOperationException e) {
+            throw new UncheckedIOException(new IOException(e.getMessage()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (String[] fields : taken) {
+            reject(pending.get(fields[0]), "Book ID already exists", fields);
+        }
+        duplicates += taken.size();
+        imported += batch.size() - taken.size();
+        batch.clear();
+        pending.clear();
+    }
+
+    private void reject(long record, String reason, String[] fields) {
+        String[] line = new String[fields.length + 2];
+        line[0] = String.valueOf(record);
+        line[1] = reason;
+        System.arraycopy(fields, 0, line, 2, fields.length);
+        try {
+            rejects.write(CsvLoader.format(line));
+            rejects.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+// ClientSession.java - One network client with its own login, speaking a line protocol
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+// Each request is one line: a command word, a space, then arguments separated by '|'.
+// Each reply is zero or more data lines followed by a final "OK ..." or "ERR ..." line.
+public class ClientSession {
+    private static final int BUFFER_SIZE = 1024;
+
+    private final LibrarySystem library;
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private User user;
+    private String token;
+
+    public ClientSession(LibrarySystem library, Socket socket) throws IOException {
+        this.library = library;
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), BUFFER_SIZE));
+    }
+
+    public void run() throws IOException {
+        reply("OK Library Management System. LOGIN name|password to begin, HELP for commands.");
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+            String[] args = space < 0 ? new String[0] : line.substring(space + 1).split("\\|", -1);
+            if (command.equals("QUIT")) {
+                reply("OK Goodbye.");
+                return;
+            }
+            try {
+                handle(command, args);
+            } catch (InvalidOperationException | BookUnavailableException e) {
+                reply("ERR " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(String command, String[] args) throws InvalidOperationException, BookUnavailableException {
+        if (command.equals("HELP")) {
+            out.println("LOGIN name|password, RESUME token, LOGOUT, BOOKS, MYBOOKS, BORROW bookId, RETURN bookId,");
+            out.println("HOLD bookId, CANCELHOLD bookId, HOLDS,");
+            out.println("SEARCH TITLE|AUTHOR|ANY|terms, COMPLETE prefix, QUIT");
+            out.println("Admin: USERS, ADDUSER id|name|password|role, UPDATEUSER id|name|password|role, DELETEUSER id,");
+            out.println("ADDBOOK id|title|author, UPDATEBOOK id|title|author, DELETEBOOK id,");
+            out.println("TRANSACTIONS [USER|id or BOOK|id or BORROWED|from|to or RETURNED|from|to], OVERDUE, METRICS");
+            reply("OK");
+            return;
+        }
+        if (command.equals("LOGIN")) {
+            requireArgs(args, 2);
+            User found = library.authenticateUser(args[0], args[1]);
+            if (found == null) {
+                throw new InvalidOperationException("Invalid username or password.");
+            }
+            startSession(found, library.openSession(found));
+            return;
+        }
+        if (command.equals("RESUME")) {
+            requireArgs(args, 1);
+            User found = library.authenticateSession(args[0]);
+            if (found == null) {
+                throw new InvalidOperationException("Session expired. Please log in again.");
+            }
+            startSession(found, args[0]);
+            return;
+        }
+        if (user == null) {
+            throw new InvalidOperationException("Please log in first.");
+        }
+
+        switch (command) {
+            case "LOGOUT":
+                library.closeSession(token);
+                user = null;
+                token = null;
+                reply("OK Logged out.");
+                return;
+            case "BOOKS":
+                for (Book book : library.getBooks()) {
+                    out.println(book);
+                }
+                reply("OK");
+                return;
+            case "MYBOOKS":
+                for (String bookId : user.getBorrowedBooks()) {
+                    Book book = library.findBookById(bookId);
+                    if (book != null) {
+                        out.println(book);
+                    }
+                }
+                reply("OK");
+                return;
+            case "BORROW":
+                requireArgs(args, 1);
+                Transaction transaction = library.borrowBook(user, args[0]);
+                reply("OK Book borrowed successfully! Transaction ID: " + transaction.getTransactionId() + ", due " + library.getDueDate(transaction));
+                return;
+            case "RETURN":
+                requireArgs(args, 1);
+                library.returnBook(user, args[0]);
+                reply("OK Book returned successfully!");
+                return;
+            case "HOLD":
+                requireArgs(args, 1);
+                reply("OK Hold placed. Position " + library.placeHold(user, args[0]));
+                return;
+            case "CANCELHOLD":
+                requireArgs(args, 1);
+                library.cancelHold(user, args[0]);
+                reply("OK Hold cancelled.");
+                return;
+            case "HOLDS":
+                for (HoldQueues.Hold hold : library.getHolds(user)) {
+                    out.println(hold.isReady() ? hold.toString() : hold + " | Position " + library.getHoldPosition(hold));
+                }
+                reply("OK");
+                return;
+            case "SEARCH":
+                requireArgs(args, 2);
+                for (Book book : library.searchBooks(args[1], parseField(args[0]))) {
+                    out.println(book);
+                }
+                reply("OK");
+                return;
+            case "COMPLETE":
+                requireArgs(args, 1);
+                for (String suggestion : library.autocomplete(args[0], SearchIndex.Field.ANY)) {
+                    out.println(suggestion);
+                }
+                reply("OK");
+                return;
+            default:
+                handleAdmin(command, args);
+        }
+    }
+
+    private void handleAdmin(String command, String[] args) throws InvalidOperationException {
+        if (!user.getRole().equals("admin")) {
+            throw new InvalidOperationException("Unknown command: " + command);
+        }
+        switch (command) {
+            case "USERS":
+                for (User u : library.getUsers()) {
+                    out.println(u);
+                }
+                reply("OK");
+                return;
+            case "ADDUSER":
+                requireArgs(args, 4);
+                library.addUser(args[0], args[1], args[2], args[3]);
+                reply("OK User added successfully!");
+                return;
+            case "UPDATEUSER":
+                requireArgs(args, 4);
+                library.updateUser(args[0], args[1], args[2], args[3]);
+                reply("OK User updated!");
+                return;
+            case "DELETEUSER":
+                requireArgs(args, 1);
+                library.deleteUser(user, args[0]);
+                reply("OK User deleted!");
+                return;
+            case "ADDBOOK":
+                requireArgs(args, 3);
+                library.addBook(args[0], args[1], args[2]);
+                reply("OK Book added!");
+                return;
+            case "UPDATEBOOK":
+                requireArgs(args, 3);
+                library.updateBook(args[0], args[1], args[2]);
+                reply("OK Book updated!");
+                return;
+            case "DELETEBOOK":
+                requireArgs(args, 1);
+                library.deleteBook(args[0]);
+                reply("OK Book deleted!");
+                return;
+            case "TRANSACTIONS":
+                // History segments are read while the reply streams; a missing or corrupt one ends it
+                // with ERR after the lines already sent.
+                try {
+                    Iterable<Transaction> found;
+                    if (args.length == 0) {
+                        found = library.getTransactions();
+                    } else if (args[0].equalsIgnoreCase("BORROWED") || args[0].equalsIgnoreCase("RETURNED")) {
+                        requireArgs(args, 3);
+                        LocalDate from = parseDate(args[1]);
+                        LocalDate to = parseDate(args[2]);
+                        found = args[0].equalsIgnoreCase("BORROWED") ? library.getTransactionsBorrowedBetween(from, to)
+                                : library.getTransactionsReturnedBetween(from, to);
+                    } else {
+                        requireArgs(args, 2);
+                        found = args[0].equalsIgnoreCase("USER") ? library.getTransactionsByUser(args[1]) : library.getTransactionsByBook(args[1]);
+                    }
+                    for (Transaction transaction : found) {
+                        out.println(transaction);
+                    }
+                } catch (UncheckedIOException e) {
+                    reply("ERR Error reading transaction history: " + e.getCause().getMessage());
+                    return;
+                }
+                reply("OK");
+                return;
+            case "OVERDUE":
+                LocalDate today = LocalDate.now();
+                for (OverdueScheduler.Loan loan : library.getOverdueLoans()) {
+                    out.println(loan + " | " + loan.daysOverdue(today) + " days overdue");
+                }
+                reply("OK");
+                return;
+            case "METRICS":
+                out.print(library.getMetrics().snapshot());
+                reply("OK");
+                return;
+            default:
+                throw new InvalidOperationException("Unknown command: " + command);
+        }
+    }
+
+    private static LocalDate parseDate(String text) throws InvalidOperationException {
+        try {
+            return LocalDate.parse(text.trim());
+        } catch (DateTimeException e) {
+            throw new InvalidOperationException("Invalid date (expected yyyy-MM-dd): " + text);
+        }
+    }
+
+    // The token lets a reconnecting client skip the password check with RESUME.
+    private void startSession(User found, String sessionToken) {
+        user = found;
+        token = sessionToken;
+        reply("OK Welcome, " + user.getName() + ". Session " + token);
+    }
+
+    private static SearchIndex.Field parseField(String field) throws InvalidOperationException {
+        try {
+            return SearchIndex.Field.valueOf(field.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidOperationException("Search mode must be TITLE, AUTHOR or ANY.");
+        }
+    }
+
+    private static void requireArgs(String[] args, int count) throws InvalidOperationException {
+        if (args.length < count) {
+            throw new InvalidOperationException("Expected " + count + " argument(s) separated by '|'.");
+        }
+    }
+
+    private void reply(String status) {
+        out.println(status);
+        out.flush();
+    }
+}
@@ -0,0 +1,307 @@
+// CsvLoader.java - Memory-mapped, parallel CSV reader for the data files
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Records are one per line; a field may be wrapped in double quotes (with "" for a literal quote)
+// so titles can contain commas. Large files are cut into line-aligned chunks that are parsed on
+// several threads, and the parsed records are handed to the consumer in file order.
+public class CsvLoader {
+    private static final int CHUNK_SIZE = Integer.getInteger("library.csv.chunkBytes", 8 * 1024 * 1024);
+    private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private CsvLoader() {
+    }
+
+    // Parses every record with the parser (null results are skipped) and returns how many were accepted.
+    // The parser is handed a reused view of the record; see Fields.
+    public static <T> long load(Path file, Function<Fields, T> parser, Consumer<T> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<long[]> chunks = split(channel, size);
+            if (chunks.size() == 1 || PARALLELISM == 1) {
+                long accepted = 0;
+                for (long[] chunk : chunks) {
+                    accepted += parseChunk(channel, chunk, parser, consumer);
+                }
+                return accepted;
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(PARALLELISM, chunks.size()), r -> {
+                Thread t = new Thread(r, "csv-loader");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                // At most two chunks per thread are parsed ahead of the consumer, which bounds memory.
+                int window = PARALLELISM * 2;
+                Deque<Future<List<T>>> inFlight = new ArrayDeque<>();
+                int next = 0;
+                long accepted = 0;
+                while (next < chunks.size() || !inFlight.isEmpty()) {
+                    while (next < chunks.size() && inFlight.size() < window) {
+                        long[] chunk = chunks.get(next++);
+                        inFlight.add(pool.submit(() -> {
+                            List<T> records = new ArrayList<>();
+                            parseChunk(channel, chunk, parser, records::add);
+                            return records;
+                        }));
+                    }
+                    accepted += deliver(inFlight.removeFirst().get(), consumer);
+                }
+                return accepted;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + file, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    // The length of the file up to and including its last newline; anything after it is a torn record.
+    public static long completeLength(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer probe = ByteBuffer.allocate(4096);
+            long end = channel.size();
+            while (end > 0) {
+                long start = Math.max(0, end - probe.capacity());
+                probe.clear();
+                probe.limit((int) (end - start));
+                channel.read(probe, start);
+                for (int i = probe.position() - 1; i >= 0; i--) {
+                    if (probe.get(i) == '\n') {
+                        return start + i + 1;
+                    }
+                }
+                end = start;
+            }
+            return 0;
+        }
+    }
+
+    public static String format(String... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            String field = fields[i].replace('\n', ' ').replace('\r', ' ');
+            if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0) {
+                sb.append('"').append(field.replace("\"", "\"\"")).append('"');
+            } else {
+                sb.append(field);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static <T> long deliver(List<T> records, Consumer<T> consumer) {
+        for (T record : records) {
+            consumer.accept(record);
+        }
+        return records.size();
+    }
+
+    // Chunk boundaries are moved forward to the byte after the next newline.
+    private static List<long[]> split(FileChannel channel, long size) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + CHUNK_SIZE);
+            if (end < size) {
+                end = nextLineStart(channel, end, size);
+            }
+            chunks.add(new long[] { start, end });
+            start = end;
+        }
+        if (chunks.isEmpty()) {
+            chunks.add(new long[] { 0, 0 });
+        }
+        return chunks;
+    }
+
+    private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long position = from;
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static <T> long parseChunk(FileChannel channel, long[] chunk, Function<Fields, T> parser, Consumer<T> out) throws IOException {
+        int length = (int) (chunk[1] - chunk[0]);
+        if (length <= 0) {
+            return 0;
+        }
+        Fields fields = new Fields(channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], length), length);
+        long accepted = 0;
+        while (fields.nextRecord()) {
+            T record = parser.apply(fields);
+            if (record != null) {
+                out.accept(record);
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    // The current record of a chunk, read in place from the mapped file. Finding a record only marks
+    // where its fields start and end; get() decodes one field into a String when it is asked for, so
+    // a parser pays only for the fields it keeps. The same view moves on to the next record after the
+    // parser returns: a parser must not hold on to it, and toArray() copies the whole record.
+    public static final class Fields {
+        private final MappedByteBuffer bytes;
+        private final int length;
+        private int position;
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private boolean[] quoted = new boolean[8];
+        private int count;
+        private byte[] scratch = new byte[256];
+
+        private Fields(MappedByteBuffer bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public String get(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Field " + index + " of " + count);
+            }
+            int start = starts[index];
+            int end = ends[index];
+            if (!quoted[index]) {
+                int used = end - start;
+                if (used > scratch.length) {
+                    scratch = new byte[Math.max(used, scratch.length * 2)];
+                }
+                for (int i = 0; i < used; i++) {
+                    scratch[i] = bytes.get(start + i);
+                }
+                return new String(scratch, 0, used, StandardCharsets.UTF_8);
+            }
+            // Between the quotes; a doubled quote stands for one.
+            int used = 0;
+            for (int i = start; i < end; i++) {
+                byte c = bytes.get(i);
+                if (c == '"') {
+                    i++;
+                }
+                if (used == scratch.length) {
+                    scratch = Arrays.copyOf(scratch, used * 2);
+                }
+                scratch[used++] = c;
+            }
+            return new String(scratch, 0, used, StandardCharsets.UTF_8);
+        }
+
+        public String[] toArray() {
+            String[] copy = new String[count];
+            for (int i = 0; i < count; i++) {
+                copy[i] = get(i);
+            }
+            return copy;
+        }
+
+        private boolean nextRecord() {
+            while (position < length && isLineEnd(bytes.get(position))) {
+                position++;
+            }
+            if (position >= length) {
+                return false;
+            }
+            count = 0;
+            while (true) {
+                if (bytes.get(position) == '"') {
+                    quotedField();
+                } else {
+                    plainField();
+                }
+                if (position < length && bytes.get(position) == ',') {
+                    position++;
+                    if (position == length || isLineEnd(bytes.get(position))) {
+                        addField(position, position, false);
+                        return true;
+                    }
+                    continue;
+                }
+                return true;
+            }
+        }
+
+        private void plainField() {
+            int start = position;
+            while (position < length && !isFieldEnd(bytes.get(position))) {
+                position++;
+            }
+            addField(start, position, false);
+        }
+
+        private void quotedField() {
+            int start = ++position;
+            int end = length;
+            while (position < length) {
+                if (bytes.get(position++) == '"') {
+                    if (position < length && bytes.get(position) == '"') {
+                        position++;
+                    } else {
+                        end = position - 1;
+                        break;
+                    }
+                }
+            }
+            while (position < length && !isFieldEnd(bytes.get(position))) {
+                position++;
+            }
+            addField(start, end, true);
+        }
+
+        private void addField(int start, int end, boolean isQuoted) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                quoted = Arrays.copyOf(quoted, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            quoted[count++] = isQuoted;
+        }
+
+        private static boolean isFieldEnd(byte b) {
+            return b == ',' || isLineEnd(b);
+        }
+
+        private static boolean isLineEnd(byte b) {
+            return b == '\n' || b == '\r';
+        }
+    }
+}
@@ -0,0 +1,551 @@
+// HistorySegments.java - Closed transactions rolled into compressed, immutable segment files
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Closed loans leave memory in rolls. A roll writes them in ID order to new segment files under
+// history/, at most library.history.segmentRecords (default 50000) per file, and never changes a
+// segment again. A segment is a run of GZIP members of library.history.blockRecords (default 512)
+// records each, so zcat reads it whole and a lookup can inflate a single block.
+//
+// history/segments.idx lists every block with its offset, its ID, user, book and date ranges and
+// Bloom filters of its user and book IDs. A lookup by user or book inflates only the blocks that may
+// hold a match, and a date-range lookup only the blocks whose dates overlap it. The index is kept
+// in memory, about 4 bytes per closed loan.
+//
+// The index also notes the first ID and record count of the recent-history file each roll emptied.
+// If the library stops between writing the index and emptying that file, loading skips the records
+// the roll already took.
+public class HistorySegments {
+    private static final int SEGMENT_RECORDS = Math.max(1, Integer.getInteger("library.history.segmentRecords", 50000));
+    private static final int BLOCK_RECORDS = Math.max(1, Integer.getInteger("library.history.blockRecords", 512));
+    private static final double FALSE_POSITIVE_RATE = 0.001;
+    private static final int MAGIC = 0x4C534547;
+    private static final int VERSION = 1;
+
+    private final Path dir;
+    private final Path indexFile;
+    private List<Segment> segments = new ArrayList<>();
+    private int nextNumber = 1;
+    private String rolledFirstId;
+    private long rolledRecords;
+
+    private static class Segment {
+        final String name;
+        final List<Block> blocks;
+        final int records;
+
+        Segment(String name, List<Block> blocks) {
+            this.name = name;
+            this.blocks = blocks;
+            int count = 0;
+            for (Block block : blocks) {
+                block.segment = name;
+                count += block.records;
+            }
+            this.records = count;
+        }
+    }
+
+    // Dates are yyyy-MM-dd, so their ranges compare as strings.
+    private static class Block {
+        String segment;
+        long offset;
+        int length;
+        int records;
+        String minUser;
+        String maxUser;
+        String minBook;
+        String maxBook;
+        String minBorrowed;
+        String maxBorrowed;
+        String minReturned;
+        String maxReturned;
+        BloomFilter users;
+        BloomFilter books;
+
+        boolean mayHoldUser(String userId) {
+            return userId.compareTo(minUser) >= 0 && userId.compareTo(maxUser) <= 0 && users.mightContain(userId);
+        }
+
+        boolean mayHoldBook(String bookId) {
+            return bookId.compareTo(minBook) >= 0 && bookId.compareTo(maxBook) <= 0 && books.mightContain(bookId);
+        }
+
+        String minDate(boolean byReturn) {
+            return byReturn ? minReturned : minBorrowed;
+        }
+
+        boolean overlaps(boolean byReturn, String from, String to) {
+            return minDate(byReturn).compareTo(to) <= 0 && (byReturn ? maxReturned : maxBorrowed).compareTo(from) >= 0;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(offset);
+            out.writeInt(length);
+            out.writeInt(records);
+            out.writeUTF(minUser);
+            out.writeUTF(maxUser);
+            out.writeUTF(minBook);
+            out.writeUTF(maxBook);
+            out.writeUTF(minBorrowed);
+            out.writeUTF(maxBorrowed);
+            out.writeUTF(minReturned);
+            out.writeUTF(maxReturned);
+            users.writeTo(out);
+            books.writeTo(out);
+        }
+
+        static Block read(DataInputStream in) throws IOException {
+            Block block = new Block();
+            block.offset = in.readLong();
+            block.length = in.readInt();
+            block.records = in.readInt();
+            block.minUser = in.readUTF();
+            block.maxUser = in.readUTF();
+            block.minBook = in.readUTF();
+            block.maxBook = in.readUTF();
+            block.minBorrowed = in.readUTF();
+            block.maxBorrowed = in.readUTF();
+            block.minReturned = in.readUTF();
+            block.maxReturned = in.readUTF();
+            block.users = BloomFilter.readFrom(in);
+            block.books = BloomFilter.readFrom(in);
+            return block;
+        }
+    }
+
+    public HistorySegments(Path dir) {
+        this.dir = dir;
+        this.indexFile = dir.resolve("segments.idx");
+    }
+
+    public synchronized void load() throws IOException {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(indexFile + " is not a segment index");
+            }
+            int number = in.readInt();
+            String firstId = in.readBoolean() ? in.readUTF() : null;
+            long records = in.readLong();
+            int count = in.readInt();
+            List<Segment> loaded = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int blockCount = in.readInt();
+                List<Block> blocks = new ArrayList<>(blockCount);
+                for (int j = 0; j < blockCount; j++) {
+                    blocks.add(Block.read(in));
+                }
+                loaded.add(new Segment(name, blocks));
+            }
+            segments = loaded;
+            nextNumber = number;
+            rolledFirstId = firstId;
+            rolledRecords = records;
+        }
+    }
+
+    // Writes the closed loans, in ID order, as new segments and then the index that lists them. The
+    // recent-history file they came from started with firstId and held that many records; null and
+    // 0 when they came from anywhere else.
+    public synchronized void roll(List<Transaction> closed, String firstId, long records) throws IOException {
+        Files.createDirectories(dir);
+        List<Segment> written = new ArrayList<>(segments);
+        int number = nextNumber;
+        for (int from = 0; from < closed.size(); from += SEGMENT_RECORDS) {
+            String name = String.format("segment-%06d.gz", number++);
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            List<Block> blocks = new ArrayList<>();
+            int end = Math.min(closed.size(), from + SEGMENT_RECORDS);
+            for (int at = from; at < end; at += BLOCK_RECORDS) {
+                List<Transaction> chunk = closed.subList(at, Math.min(end, at + BLOCK_RECORDS));
+                Block block = describe(chunk);
+                byte[] bytes = encode(chunk);
+                block.offset = file.size();
+                block.length = bytes.length;
+                file.write(bytes);
+                blocks.add(block);
+            }
+            AtomicFile.replace(dir.resolve(name), file.toByteArray());
+            written.add(new Segment(name, blocks));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(number);
+            out.writeBoolean(firstId != null);
+            if (firstId != null) {
+                out.writeUTF(firstId);
+            }
+            out.writeLong(records);
+            out.writeInt(written.size());
+            for (Segment segment : written) {
+                out.writeUTF(segment.name);
+                out.writeInt(segment.blocks.size());
+                for (Block block : segment.blocks) {
+                    block.write(out);
+                }
+            }
+        }
+        AtomicFile.replace(indexFile, bytes.toByteArray());
+        segments = written;
+        nextNumber = number;
+        rolledFirstId = firstId;
+        rolledRecords = records;
+    }
+
+    // How many leading records of a recent-history file starting with firstId are already in segments.
+    public synchronized long alreadyRolled(String firstId) {
+        return firstId.equals(rolledFirstId) ? rolledRecords : 0;
+    }
+
+    public List<Transaction> findByUser(String userId) throws IOException {
+        return find(block -> block.mayHoldUser(userId), t -> t.getUserId().equals(userId));
+    }
+
+    public List<Transaction> findByBook(String bookId) throws IOException {
+        return find(block -> block.mayHoldBook(bookId), t -> t.getBookId().equals(bookId));
+    }
+
+    // Every rolled transaction merged with the given ID-ordered ones, in ID order. The segments are
+    // inflated side by side as the merge reads them, each closed after its last record.
+    public Iterator<Transaction> merge(Iterator<Transaction> recent) {
+        List<Segment> current;
+        synchronized (this) {
+            current = segments;
+        }
+        if (current.isEmpty()) {
+            return recent;
+        }
+        PriorityQueue<Cursor> heads = new PriorityQueue<>();
+        Cursor first = new Cursor(recent);
+        if (first.advance()) {
+            heads.add(first);
+        }
+        for (Segment segment : current) {
+            Cursor cursor = new Cursor(reader(segment));
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+        return new Iterator<Transaction>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Transaction next() {
+                Cursor cursor = heads.poll();
+                if (cursor == null) {
+                    throw new NoSuchElementException();
+                }
+                Transaction next = cursor.head;
+                long id = cursor.id;
+                if (cursor.advance()) {
+                    heads.add(cursor);
+                }
+                // While a roll is being written a loan can be both recent and rolled; it is listed once.
+                while (!heads.isEmpty() && heads.peek().id == id) {
+                    Cursor same = heads.poll();
+                    if (same.advance()) {
+                        heads.add(same);
+                    }
+                }
+                return next;
+            }
+        };
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+        final Iterator<Transaction> source;
+        Transaction head;
+        long id;
+
+        Cursor(Iterator<Transaction> source) {
+            this.source = source;
+        }
+
+        boolean advance() {
+            if (!source.hasNext()) {
+                return false;
+            }
+            head = source.next();
+            id = TransactionIdAllocator.parse(head.getTransactionId());
+            return true;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Long.compare(id, other.id);
+        }
+    }
+
+    // Rolled loans borrowed, or returned, from one date to the other inclusive, merged into date
+    // order with the given recent ones, which are in date order already. A block overlapping the
+    // range is inflated only when the merge reaches its first date, so few are held at a time.
+    public Iterator<Transaction> between(boolean byReturn, LocalDate from, LocalDate to, Iterator<Transaction> recent) {
+        String first = from.toString();
+        String last = to.toString();
+        List<Block> overlapping = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                for (Block block : segment.blocks) {
+                    if (block.overlaps(byReturn, first, last)) {
+                        overlapping.add(block);
+                    }
+                }
+            }
+        }
+        overlapping.sort(Comparator.comparing(block -> block.minDate(byReturn)));
+        return new DateMerge(byReturn, first, last, overlapping, recent);
+    }
+
+    private class DateMerge implements Iterator<Transaction> {
+        private final boolean byReturn;
+        private final String from;
+        private final String to;
+        private final List<Block> blocks;
+        private int opened;
+        private final PriorityQueue<DateCursor> heads = new PriorityQueue<>();
+        private String lastDate;
+        private final Set<String> idsOnDate = new HashSet<>();
+        private Transaction next;
+
+        DateMerge(boolean byReturn, String from, String to, List<Block> blocks, Iterator<Transaction> recent) {
+            this.byReturn = byReturn;
+            this.from = from;
+            this.to = to;
+            this.blocks = blocks;
+            push(new DateCursor(recent, byReturn));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                while (opened < blocks.size()
+                        && (heads.isEmpty() || blocks.get(opened).minDate(byReturn).compareTo(heads.peek().date) <= 0)) {
+                    open(blocks.get(opened++));
+                }
+                DateCursor cursor = heads.poll();
+                if (cursor == null) {
+                    return false;
+                }
+                Transaction head = cursor.head;
+                String date = cursor.date;
+                push(cursor);
+                // While a roll is being written a loan can be both recent and rolled; it is listed once.
+                if (!date.equals(lastDate)) {
+                    lastDate = date;
+                    idsOnDate.clear();
+                }
+                if (idsOnDate.add(head.getTransactionId())) {
+                    next = head;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Transaction next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Transaction result = next;
+            next = null;
+            return result;
+        }
+
+        private void push(DateCursor cursor) {
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+
+        private void open(Block block) {
+            List<Transaction> found = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(dir.resolve(block.segment), StandardOpenOption.READ)) {
+                decode(channel, block, t -> {
+                    String date = byReturn ? t.getDateReturned() : t.getDateBorrowed();
+                    return date.compareTo(from) >= 0 && date.compareTo(to) <= 0;
+                }, found);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            found.sort(Comparator.comparing(t -> byReturn ? t.getDateReturned() : t.getDateBorrowed()));
+            push(new DateCursor(found.iterator(), byReturn));
+        }
+    }
+
+    private static class DateCursor implements Comparable<DateCursor> {
+        final Iterator<Transaction> source;
+        final boolean byReturn;
+        Transaction head;
+        String date;
+
+        DateCursor(Iterator<Transaction> source, boolean byReturn) {
+            this.source = source;
+            this.byReturn = byReturn;
+        }
+
+        boolean advance() {
+            if (!source.hasNext()) {
+                return false;
+            }
+            head = source.next();
+            date = byReturn ? head.getDateReturned() : head.getDateBorrowed();
+            return true;
+        }
+
+        @Override
+        public int compareTo(DateCursor other) {
+            return date.compareTo(other.date);
+        }
+    }
+
+    private List<Transaction> find(Predicate<Block> candidate, Predicate<Transaction> match) throws IOException {
+        List<Segment> current;
+        synchronized (this) {
+            current = segments;
+        }
+        List<Transaction> found = new ArrayList<>();
+        for (Segment segment : current) {
+            FileChannel channel = null;
+            try {
+                for (Block block : segment.blocks) {
+                    if (!candidate.test(block)) {
+                        continue;
+                    }
+                    if (channel == null) {
+                        channel = FileChannel.open(dir.resolve(segment.name), StandardOpenOption.READ);
+                    }
+                    decode(channel, block, match, found);
+                }
+            } finally {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+        return found;
+    }
+
+    private static void decode(FileChannel channel, Block block, Predicate<Transaction> match, List<Transaction> into) throws IOException {
+        try (DataInputStream in = inflate(readBlock(channel, block))) {
+            for (int i = 0; i < block.records; i++) {
+                Transaction t = readRecord(in);
+                if (match.test(t)) {
+                    into.add(t);
+                }
+            }
+        }
+    }
+
+    private static byte[] readBlock(FileChannel channel, Block block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(block.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, block.offset + buffer.position()) < 0) {
+                throw new EOFException("Segment block at " + block.offset + " is truncated");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static DataInputStream inflate(byte[] block) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(block), 8192)));
+    }
+
+    // Reads the segment front to back; GZIPInputStream carries on from one member to the next.
+    private Iterator<Transaction> reader(Segment segment) {
+        return new Iterator<Transaction>() {
+            private DataInputStream in;
+            private int left = segment.records;
+
+            @Override
+            public boolean hasNext() {
+                return left > 0;
+            }
+
+            @Override
+            public Transaction next() {
+                if (left <= 0) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    if (in == null) {
+                        in = new DataInputStream(new BufferedInputStream(
+                                new GZIPInputStream(Files.newInputStream(dir.resolve(segment.name)), 1 << 16)));
+                    }
+                    Transaction next = readRecord(in);
+                    if (--left == 0) {
+                        in.close();
+                    }
+                    return next;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private static Transaction readRecord(DataInputStream in) throws IOException {
+        return new Transaction(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+    }
+
+    private static byte[] encode(List<Transaction> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(bytes, 8192)))) {
+            for (Transaction t : records) {
+                out.writeUTF(t.getTransactionId());
+                out.writeUTF(t.getUserId());
+                out.writeUTF(t.getBookId());
+                out.writeUTF(t.getDateBorrowed());
+                out.writeUTF(t.getDateReturned());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Block describe(List<Transaction> records) {
+        Block block = new Block();
+        block.records = records.size();
+        block.users = new BloomFilter(records.size(), FALSE_POSITIVE_RATE);
+        block.books = new BloomFilter(records.size(), FALSE_POSITIVE_RATE);
+        for (Transaction t : records) {
+            String user = t.getUserId();
+            String book = t.getBookId();
+            String borrowed = t.getDateBorrowed();
+            String returned = t.getDateReturned();
+            block.minUser = min(block.minUser, user);
+            block.maxUser = max(block.maxUser, user);
+            block.minBook = min(block.minBook, book);
+            block.maxBook = max(block.maxBook, book);
+            block.minBorrowed = min(block.minBorrowed, borrowed);
+            block.maxBorrowed = max(block.maxBorrowed, borrowed);
+            block.minReturned = min(block.minReturned, returned);
+            block.maxReturned = max(block.maxReturned, returned);
+            block.users.add(user);
+            block.books.add(book);
+        }
+        return block;
+    }
+
+    private static String min(String current, String value) {
+        return current == null || value.compareTo(current) < 0 ? value : current;
+    }
+
+    private static String max(String current, String value) {
+        return current == null || value.compareTo(current) > 0 ? value : current;
+    }
+}
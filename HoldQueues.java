@@ -0,0 +1,199 @@
+// HoldQueues.java - Per-book FIFO hold queues and the copies set aside for pickup
+import java.util.*;
+
+// A hold waits in its book's queue until a copy comes back. The return then takes the head of the
+// queue, in constant time, and sets the copy aside for that patron until a pickup date. Each user's
+// holds are also indexed so a patron can list or cancel theirs without a scan of every queue.
+// Cancelling from the middle of a queue walks that one queue.
+public class HoldQueues {
+    private final Map<String, ArrayDeque<Hold>> waiting = new HashMap<>();
+    private final Map<String, Hold> ready = new HashMap<>();
+    private final Map<String, List<Hold>> byUser = new HashMap<>();
+    private int count;
+    private boolean changed;
+
+    public static class Hold {
+        private final String userId;
+        private final String bookId;
+        private final String datePlaced;
+        private String readyUntil;
+
+        public Hold(String userId, String bookId, String datePlaced, String readyUntil) {
+            this.userId = userId;
+            this.bookId = bookId;
+            this.datePlaced = datePlaced;
+            this.readyUntil = readyUntil;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getBookId() {
+            return bookId;
+        }
+
+        public String getDatePlaced() {
+            return datePlaced;
+        }
+
+        // The last day to pick the copy up, or "null" while the hold is still waiting.
+        public String getReadyUntil() {
+            return readyUntil;
+        }
+
+        public boolean isReady() {
+            return !"null".equals(readyUntil);
+        }
+
+        public String toFileString() {
+            return CsvLoader.format(bookId, userId, datePlaced, readyUntil);
+        }
+
+        @Override
+        public String toString() {
+            return "BookID: " + bookId + " | UserID: " + userId + " | Placed: " + datePlaced
+                    + (isReady() ? " | Ready until: " + readyUntil : " | Waiting");
+        }
+    }
+
+    // Appends a waiting hold, or sets a ready one aside, as read back from holds.txt. False if the
+    // user already holds the book.
+    public synchronized boolean add(Hold hold) {
+        List<Hold> mine = byUser.computeIfAbsent(hold.userId, k -> new ArrayList<>(2));
+        for (Hold other : mine) {
+            if (other.bookId.equals(hold.bookId)) {
+                return false;
+            }
+        }
+        if (hold.isReady()) {
+            Hold previous = ready.put(hold.bookId, hold);
+            if (previous != null) {
+                removeFromUser(previous);
+            }
+        } else {
+            waiting.computeIfAbsent(hold.bookId, k -> new ArrayDeque<>()).addLast(hold);
+        }
+        mine.add(hold);
+        count++;
+        changed = true;
+        return true;
+    }
+
+    // Sets the copy aside for the first waiting hold, ready until the given date. Null if nobody is waiting.
+    public synchronized Hold handOff(String bookId, String readyUntil) {
+        ArrayDeque<Hold> queue = waiting.get(bookId);
+        if (queue == null) {
+            return null;
+        }
+        Hold next = queue.pollFirst();
+        if (queue.isEmpty()) {
+            waiting.remove(bookId);
+        }
+        next.readyUntil = readyUntil;
+        ready.put(bookId, next);
+        changed = true;
+        return next;
+    }
+
+    public synchronized Hold readyHold(String bookId) {
+        return ready.get(bookId);
+    }
+
+    // Removes the copy set aside for the book, on pickup or expiry.
+    public synchronized Hold takeReady(String bookId) {
+        Hold hold = ready.remove(bookId);
+        if (hold != null) {
+            removeFromUser(hold);
+        }
+        return hold;
+    }
+
+    // Removes the user's hold on the book, waiting or ready; null if there was none.
+    public synchronized Hold cancel(String userId, String bookId) {
+        List<Hold> mine = byUser.get(userId);
+        if (mine == null) {
+            return null;
+        }
+        for (Hold hold : mine) {
+            if (!hold.bookId.equals(bookId)) {
+                continue;
+            }
+            if (hold.isReady()) {
+                ready.remove(bookId);
+            } else {
+                ArrayDeque<Hold> queue = waiting.get(bookId);
+                queue.remove(hold);
+                if (queue.isEmpty()) {
+                    waiting.remove(bookId);
+                }
+            }
+            removeFromUser(hold);
+            return hold;
+        }
+        return null;
+    }
+
+    public synchronized List<Hold> forUser(String userId) {
+        List<Hold> mine = byUser.get(userId);
+        return mine == null ? new ArrayList<>() : new ArrayList<>(mine);
+    }
+
+    // 1 for the head of the queue, 0 for a copy ready for pickup, -1 for a hold no longer held.
+    public synchronized int position(Hold hold) {
+        if (hold.isReady()) {
+            return ready.get(hold.bookId) == hold ? 0 : -1;
+        }
+        ArrayDeque<Hold> queue = waiting.get(hold.bookId);
+        if (queue == null) {
+            return -1;
+        }
+        int position = 1;
+        for (Hold other : queue) {
+            if (other == hold) {
+                return position;
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    public synchronized int waitingFor(String bookId) {
+        ArrayDeque<Hold> queue = waiting.get(bookId);
+        return queue == null ? 0 : queue.size();
+    }
+
+    public synchronized List<Hold> readyHolds() {
+        return new ArrayList<>(ready.values());
+    }
+
+    // Every hold, ready copies first and then each queue in order, as holds.txt stores them.
+    public synchronized List<Hold> all() {
+        List<Hold> all = new ArrayList<>(count);
+        all.addAll(ready.values());
+        for (ArrayDeque<Hold> queue : waiting.values()) {
+            all.addAll(queue);
+        }
+        return all;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized boolean takeChanged() {
+        boolean was = changed;
+        changed = false;
+        return was;
+    }
+
+    private void removeFromUser(Hold hold) {
+        List<Hold> mine = byUser.get(hold.userId);
+        mine.remove(hold);
+        if (mine.isEmpty()) {
+            byUser.remove(hold.userId);
+        }
+        count--;
+        changed = true;
+    }
+}
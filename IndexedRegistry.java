@@ -0,0 +1,56 @@
+// IndexedRegistry.java - Insertion-ordered collection with O(1) lookup by ID
+import java.util.*;
+import java.util.function.Function;
+
+public class IndexedRegistry<T> implements Iterable<T> {
+    private final Map<String, T> entries;
+    private final Function<T, String> keyOf;
+
+    public IndexedRegistry(Function<T, String> keyOf) {
+        this.entries = new LinkedHashMap<>();
+        this.keyOf = keyOf;
+    }
+
+    public boolean add(T item) {
+        String key = keyOf.apply(item);
+        if (entries.containsKey(key)) {
+            return false;
+        }
+        entries.put(key, item);
+        return true;
+    }
+
+    public T get(String key) {
+        return entries.get(key);
+    }
+
+    public boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    public boolean remove(T item) {
+        return entries.remove(keyOf.apply(item), item);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // A copy of the items, for walking them after the caller's lock is released.
+    public List<T> snapshot() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return Collections.unmodifiableCollection(entries.values()).iterator();
+    }
+}
@@ -0,0 +1,8 @@
+// InvalidOperationException.java - Custom Exception
+public class InvalidOperationException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidOperationException(String message) {
+        super(message);
+    }
+}
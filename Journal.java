@@ -0,0 +1,257 @@
+// Journal.java - Append-only write-ahead log with group commit
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+public class Journal implements Closeable {
+    private final Path journalFile;
+    private final Path checkpointFile;
+    private final int syncEveryRecords;
+    private final long syncIntervalMillis;
+    private FileChannel channel;
+    private ScheduledExecutorService syncer;
+    private long nextLsn = 1;
+    private long checkpointLsn = 0;
+    private int unsyncedRecords = 0;
+    private long lastSyncMillis = System.currentTimeMillis();
+    private int recordCount = 0;
+    private long markedOffset = 0;
+    private int markedRecords = 0;
+    private int syncHolds = 0;
+
+    public Journal(String journalFile, String checkpointFile, int syncEveryRecords, long syncIntervalMillis) {
+        this.journalFile = Paths.get(journalFile);
+        this.checkpointFile = Paths.get(checkpointFile);
+        this.syncEveryRecords = Math.max(1, syncEveryRecords);
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    // Feeds every record written after the last checkpoint to the handler, oldest first.
+    public int replay(Consumer<String[]> handler) throws IOException {
+        checkpointLsn = readCheckpointLsn();
+        nextLsn = Math.max(nextLsn, checkpointLsn + 1);
+        if (!Files.exists(journalFile)) {
+            return 0;
+        }
+        int replayed = 0;
+        try (BufferedReader br = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = decode(line);
+                if (fields.length < 2) {
+                    continue;
+                }
+                long lsn;
+                try {
+                    lsn = Long.parseLong(fields[0]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                recordCount++;
+                nextLsn = Math.max(nextLsn, lsn + 1);
+                if (lsn > checkpointLsn) {
+                    String[] record = new String[fields.length - 1];
+                    System.arraycopy(fields, 1, record, 0, record.length);
+                    handler.accept(record);
+                    replayed++;
+                }
+            }
+        }
+        return replayed;
+    }
+
+    public synchronized void open() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        terminateTornRecord();
+        if (syncIntervalMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "journal-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void append(String... record) throws IOException {
+        if (channel == null) {
+            throw new IOException("Journal is not open.");
+        }
+        String[] fields = new String[record.length + 1];
+        fields[0] = Long.toString(nextLsn++);
+        System.arraycopy(record, 0, fields, 1, record.length);
+        ByteBuffer buffer = ByteBuffer.wrap((encode(fields) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        recordCount++;
+        unsyncedRecords++;
+        if ((syncHolds == 0 && unsyncedRecords >= syncEveryRecords)
+                || (syncIntervalMillis > 0 && System.currentTimeMillis() - lastSyncMillis >= syncIntervalMillis)) {
+            sync();
+        }
+    }
+
+    // While held, appends leave syncing to sync() (or the sync interval), so a batch of records can
+    // share one fsync. Holds nest; releasing the last one syncs.
+    public synchronized void holdSync() {
+        syncHolds++;
+    }
+
+    public synchronized void releaseSync() throws IOException {
+        if (syncHolds > 0 && --syncHolds == 0) {
+            sync();
+        }
+    }
+
+    public synchronized void sync() throws IOException {
+        if (channel != null && unsyncedRecords > 0) {
+            channel.force(false);
+            unsyncedRecords = 0;
+            lastSyncMillis = System.currentTimeMillis();
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            synchronized (this) {
+                if (System.currentTimeMillis() - lastSyncMillis >= syncIntervalMillis) {
+                    sync();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error syncing journal: " + e.getMessage());
+        }
+    }
+
+    // First half of a checkpoint, called while appends are held off: returns the last LSN the
+    // snapshot about to be taken will cover.
+    public synchronized long mark() throws IOException {
+        sync();
+        markedOffset = channel != null ? channel.position() : 0;
+        markedRecords = recordCount;
+        return nextLsn - 1;
+    }
+
+    // Second half, once the snapshot is on disk. Records it covers are dropped; any appended since
+    // mark() are copied into a fresh journal that is renamed over the old one.
+    public synchronized void checkpointed(long coveredLsn) throws IOException {
+        AtomicFile.replace(checkpointFile, (coveredLsn + "\n").getBytes(StandardCharsets.UTF_8));
+        checkpointLsn = coveredLsn;
+        if (channel == null) {
+            Files.deleteIfExists(journalFile);
+        } else if (channel.position() == markedOffset) {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+        } else {
+            ByteBuffer tail = ByteBuffer.allocate((int) (channel.position() - markedOffset));
+            while (tail.hasRemaining()) {
+                if (channel.read(tail, markedOffset + tail.position()) < 0) {
+                    break;
+                }
+            }
+            channel.close();
+            AtomicFile.replace(journalFile, tail.array());
+            channel = FileChannel.open(journalFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+        recordCount -= markedRecords;
+        markedRecords = 0;
+        markedOffset = 0;
+    }
+
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+            syncer = null;
+        }
+        if (channel != null) {
+            sync();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // A crash mid-append can leave a partial last line; start the next record on a fresh line.
+    private void terminateTornRecord() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return;
+        }
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, size - 1);
+        if (last.get(0) != '\n') {
+            channel.write(ByteBuffer.wrap(new byte[] {'\n'}));
+        }
+    }
+
+    private long readCheckpointLsn() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static String encode(String[] fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            String field = fields[i];
+            for (int j = 0; j < field.length(); j++) {
+                char c = field.charAt(j);
+                switch (c) {
+                    case '\\': sb.append("\\\\"); break;
+                    case '\t': sb.append("\\t"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    default: sb.append(c);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    static String[] decode(String line) {
+        java.util.List<String> fields = new java.util.ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(sb.toString());
+                sb.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                switch (next) {
+                    case 't': sb.append('\t'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    default: sb.append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        fields.add(sb.toString());
+        return fields.toArray(new String[0]);
+    }
+}
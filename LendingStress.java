@@ -0,0 +1,233 @@
+// LendingStress.java - Races borrow and return threads on the same books and checks for double lending
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Every thread borrows and returns random books from a small catalogue, so most calls contend for
+// a book another thread is lending at the same moment. Each book has a counter of holders, raised
+// after a borrow succeeds and lowered before the return; above one means the book was lent twice.
+// After the run the ledger, the books and the users must agree: at most one open loan per book,
+// the same number of users holding it, and the book available exactly when there is none.
+//
+// Each thread count runs in its own JVM, in a scratch copy of the same synthetic data, like
+// LibraryBenchmark. The report gives ops/sec (borrows, refusals and returns) for 1, 2, 4, ... up
+// to the largest thread count, and the run exits with status 1 if any check failed.
+//
+//   java LendingStress [threads]       largest thread count, default twice the cores
+//
+// -Dstress.books (default 16), -Dstress.users (default 2000) and -Dstress.millis (time per thread
+// count, default 3000) size the run. library.* properties are passed on to the forks; by default
+// every borrow and return waits for its own journal fsync, so pass -Dlibrary.journal.syncEvery and
+// -Dlibrary.journal.syncMillis to share them and measure the locking rather than the disk.
+public class LendingStress {
+    private static final int BOOKS = Integer.getInteger("stress.books", 16);
+    private static final int USERS = Integer.getInteger("stress.users", 2000);
+    private static final long MILLIS = Long.getLong("stress.millis", 3000L);
+    private static final String RESULT = "RESULT\t";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("--fork")) {
+            System.exit(runFork(Integer.parseInt(args[1])) ? 0 : 1);
+        }
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        List<Integer> counts = new ArrayList<>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(maxThreads);
+
+        Path dataset = Files.createTempDirectory("library-stress");
+        System.out.println("Generating " + BOOKS + " books and " + USERS + " users in " + dataset);
+        new SyntheticData(BOOKS, USERS, 0, 0, 42).writeTo(dataset);
+        List<String[]> results = new ArrayList<>();
+        try {
+            for (int threads : counts) {
+                System.out.println("# " + threads + " thread(s), " + MILLIS + " ms");
+                results.add(fork(threads, dataset));
+            }
+        } finally {
+            LibraryBenchmark.deleteTree(dataset);
+        }
+
+        boolean passed = true;
+        double single = Double.parseDouble(results.get(0)[0]);
+        System.out.println();
+        System.out.println(String.format("%7s %12s %8s %10s %10s %10s  %s", "Threads", "Ops/sec", "Scaling", "Borrows",
+                "Refused", "Returns", "Checks"));
+        for (int i = 0; i < counts.size(); i++) {
+            String[] result = results.get(i);
+            double rate = Double.parseDouble(result[0]);
+            passed &= result[4].equals("ok");
+            System.out.println(String.format("%7d %12.0f %7.2fx %10s %10s %10s  %s", counts.get(i), rate, rate / single,
+                    result[1], result[2], result[3], result[4]));
+        }
+        System.out.println(passed ? "No book was lent twice." : "Double lending or an inconsistent ledger was found.");
+        System.exit(passed ? 0 : 1);
+    }
+
+    // Starts a JVM in a scratch copy of the dataset and returns its result fields.
+    private static String[] fork(int threads, Path dataset) throws IOException, InterruptedException {
+        Path workDir = Files.createTempDirectory("library-fork");
+        try (Stream<Path> files = Files.list(dataset)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, workDir.resolve(file.getFileName()));
+            }
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("library.") || name.startsWith("stress.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-cp");
+        command.add(LibraryBenchmark.absoluteClassPath());
+        command.add(LendingStress.class.getName());
+        command.add("--fork");
+        command.add(String.valueOf(threads));
+
+        Process process = new ProcessBuilder(command).directory(workDir.toFile()).redirectErrorStream(true).start();
+        String[] result = null;
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(RESULT)) {
+                    result = line.substring(RESULT.length()).split("\t");
+                } else {
+                    output.append(line).append('\n');
+                    System.out.println(line);
+                }
+            }
+        }
+        int status = process.waitFor();
+        LibraryBenchmark.deleteTree(workDir);
+        if (result == null) {
+            throw new IOException("Fork for " + threads + " thread(s) failed with status " + status + ":\n" + output);
+        }
+        return result;
+    }
+
+    // Runs the threads, then checks the ledger. Prints one RESULT line: ops/sec, borrows, refusals,
+    // returns and "ok" or the number of problems found; problems are printed above it.
+    private static boolean runFork(int threads) throws Exception {
+        PrintStream out = System.out;
+        LibrarySystem library = LibraryBenchmark.quietly(() -> {
+            LibrarySystem loaded = new LibrarySystem();
+            loaded.loadData();
+            return loaded;
+        });
+        List<User> users = library.getUsers();
+        List<Book> books = library.getBooks();
+        String[] bookIds = new String[books.size()];
+        for (int i = 0; i < bookIds.length; i++) {
+            bookIds[i] = books.get(i).getBookId();
+        }
+        AtomicIntegerArray holders = new AtomicIntegerArray(bookIds.length);
+        AtomicLong borrows = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        AtomicLong returns = new AtomicLong();
+        List<String> problems = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            // Each thread acts for its own users, so every race is over a book.
+            List<User> mine = new ArrayList<>();
+            for (int u = t; u < users.size(); u += threads) {
+                mine.add(users.get(u));
+            }
+            workers.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                List<int[]> loans = new ArrayList<>();
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline[0]) {
+                        if (!loans.isEmpty() && random.nextBoolean()) {
+                            int[] loan = loans.remove(random.nextInt(loans.size()));
+                            holders.decrementAndGet(loan[1]);
+                            library.returnBook(mine.get(loan[0]), bookIds[loan[1]]);
+                            returns.incrementAndGet();
+                            continue;
+                        }
+                        int user = random.nextInt(mine.size());
+                        int book = random.nextInt(bookIds.length);
+                        try {
+                            library.borrowBook(mine.get(user), bookIds[book]);
+                        } catch (BookUnavailableException | InvalidOperationException e) {
+                            refused.incrementAndGet();
+                            continue;
+                        }
+                        borrows.incrementAndGet();
+                        loans.add(new int[] { user, book });
+                        if (holders.incrementAndGet(book) > 1) {
+                            problems.add(bookIds[book] + " lent to two users at once");
+                        }
+                    }
+                } catch (Exception e) {
+                    problems.add("Worker failed: " + e);
+                }
+            }));
+        }
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        long started = System.nanoTime();
+        deadline[0] = started + MILLIS * 1000000L;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        long open = 0;
+        long closed = 0;
+        for (String bookId : bookIds) {
+            int openLoans = 0;
+            for (Transaction transaction : library.getTransactionsByBook(bookId)) {
+                if (transaction.isOpen()) {
+                    openLoans++;
+                } else {
+                    closed++;
+                }
+            }
+            int holding = 0;
+            for (User user : users) {
+                if (user.hasBorrowed(bookId)) {
+                    holding++;
+                }
+            }
+            boolean available = library.findBookById(bookId).isAvailable();
+            if (openLoans > 1 || holding != openLoans || available != (openLoans == 0)) {
+                problems.add(bookId + ": " + openLoans + " open loans, " + holding + " holders, available " + available);
+            }
+            open += openLoans;
+        }
+        if (open + closed != borrows.get() || closed != returns.get()) {
+            problems.add("Ledger has " + (open + closed) + " loans and " + closed + " returns; threads made "
+                    + borrows.get() + " and " + returns.get());
+        }
+        library.shutdown();
+        System.setOut(out);
+
+        for (String problem : problems) {
+            out.println(problem);
+        }
+        long operations = borrows.get() + refused.get() + returns.get();
+        out.println(RESULT + (operations / seconds) + "\t" + borrows.get() + "\t" + refused.get() + "\t" + returns.get()
+                + "\t" + (problems.isEmpty() ? "ok" : problems.size() + " failed"));
+        return problems.isEmpty();
+    }
+}
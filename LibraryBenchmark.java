@@ -0,0 +1,527 @@
+// LibraryBenchmark.java - Microbenchmark suite for the library's hot paths
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Runs each benchmark in a fresh JVM (a fork), in its own copy of a synthetic dataset, with warmup
+// iterations before the measured ones, the way JMH does. Fast operations are measured as throughput
+// over timed iterations; loadData and saveAllData are timed one call at a time. Results can be saved
+// and compared against a saved baseline, and a score worse than the tolerance fails the run.
+//
+//   java LibraryBenchmark                      run everything
+//   java LibraryBenchmark search borrow        run benchmarks whose name contains a filter
+//   java LibraryBenchmark --scaling            check that ID lookups stay flat as the catalogue grows
+//
+// Settings are system properties: bench.books, bench.users, bench.loans, bench.history (dataset
+// size), bench.holdTitles and bench.holds (books with hold queues, holds per book), bench.warmup, bench.iterations, bench.iterationMillis, bench.forks, bench.save,
+// bench.baseline and bench.tolerance (percent). library.* properties are passed on to the forks.
+// --scaling reads bench.scalingSizes (catalogue sizes, default 1000,100000,1000000) and
+// bench.scalingLimit (how many times slower the largest may be than the smallest, default 4).
+// bench.lookupKeys (default 65536) is how many distinct IDs the lookup benchmarks cycle through.
+public class LibraryBenchmark {
+    private static final int BOOKS = Integer.getInteger("bench.books", 100000);
+    private static final int USERS = Integer.getInteger("bench.users", 20000);
+    private static final int LOANS = Integer.getInteger("bench.loans", 10000);
+    private static final int HISTORY = Integer.getInteger("bench.history", 200000);
+    private static final int HOLD_TITLES = Integer.getInteger("bench.holdTitles", 10);
+    private static final int HOLDS = Integer.getInteger("bench.holds", 2000);
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_MILLIS = Long.getLong("bench.iterationMillis", 1000L);
+    private static final int FORKS = Integer.getInteger("bench.forks", 1);
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("bench.tolerance", "10"));
+    private static final String SCALING_SIZES = System.getProperty("bench.scalingSizes", "1000,100000,1000000");
+    private static final double SCALING_LIMIT = Double.parseDouble(System.getProperty("bench.scalingLimit", "4"));
+    private static final String RESULT = "RESULT\t";
+
+    // Keeps results observable so the JIT cannot drop the measured calls.
+    private static volatile int sink;
+
+    private interface Operation {
+        int run(int i) throws Exception;
+    }
+
+    private static class Benchmark {
+        final String name;
+        final boolean singleShot;
+
+        Benchmark(String name, boolean singleShot) {
+            this.name = name;
+            this.singleShot = singleShot;
+        }
+
+        String units() {
+            return singleShot ? "ms/op" : "ops/s";
+        }
+    }
+
+    private static final List<Benchmark> BENCHMARKS = Arrays.asList(
+            new Benchmark("findBookById", false),
+            new Benchmark("findUserById", false),
+            new Benchmark("searchBooks", false),
+            new Benchmark("generateTransactionId", false),
+            new Benchmark("findActiveTransaction", false),
+            new Benchmark("transactionsBetween", false),
+            new Benchmark("borrowReturnCycle", false),
+            new Benchmark("returnWithHolds", false),
+            new Benchmark("loadData", true),
+            new Benchmark("saveAllData", true));
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("--fork")) {
+            runFork(args[1]);
+            System.exit(0);
+        }
+        if (args.length == 1 && args[0].equals("--scaling")) {
+            System.exit(runScaling() ? 0 : 1);
+        }
+        List<Benchmark> selected = new ArrayList<>();
+        for (Benchmark benchmark : BENCHMARKS) {
+            if (args.length == 0 || matches(benchmark.name, args)) {
+                selected.add(benchmark);
+            }
+        }
+
+        Path dataset = Files.createTempDirectory("library-bench");
+        System.out.println("Generating " + BOOKS + " books, " + USERS + " users, " + LOANS + " open loans, "
+                + HISTORY + " closed loans in " + dataset);
+        new SyntheticData(BOOKS, USERS, LOANS, HISTORY, 42).writeTo(dataset);
+
+        Map<String, double[]> results = new LinkedHashMap<>();
+        try {
+            for (Benchmark benchmark : selected) {
+                List<Double> scores = new ArrayList<>();
+                for (int fork = 1; fork <= FORKS; fork++) {
+                    System.out.println("# " + benchmark.name + ", fork " + fork + " of " + FORKS);
+                    scores.addAll(fork(benchmark, dataset, Collections.emptyMap()));
+                }
+                results.put(benchmark.name, summarize(scores));
+            }
+        } finally {
+            deleteTree(dataset);
+        }
+
+        boolean regressed = report(selected, results);
+        String save = System.getProperty("bench.save");
+        if (save != null) {
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<String, double[]> entry : results.entrySet()) {
+                lines.add(entry.getKey() + "\t" + entry.getValue()[0]);
+            }
+            Files.write(Paths.get(save), lines, StandardCharsets.UTF_8);
+            System.out.println("Saved results to " + save);
+        }
+        System.exit(regressed ? 1 : 0);
+    }
+
+    private static boolean matches(String name, String[] filters) {
+        for (String filter : filters) {
+            if (name.toLowerCase().contains(filter.toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Runs findBookById and findUserById over catalogues of each size, with a user for every five
+    // books. Every size looks up the same number of distinct IDs (bench.lookupKeys, 1024 here), so
+    // the working set stays in the CPU caches and mostly only the lookup itself can grow with the
+    // catalogue; TLB misses across a larger heap still cost up to about twice as much. The largest
+    // catalogue may be at most SCALING_LIMIT times slower than the smallest, where a scan would be a
+    // thousand times slower. Returns false if either lookup grew more.
+    private static boolean runScaling() throws IOException, InterruptedException {
+        List<Benchmark> lookups = Arrays.asList(BENCHMARKS.get(0), BENCHMARKS.get(1));
+        Map<String, List<double[]>> results = new LinkedHashMap<>();
+        List<Integer> sizes = new ArrayList<>();
+        for (String size : SCALING_SIZES.split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+        for (int size : sizes) {
+            int users = Math.max(1, size / 5);
+            Path dataset = Files.createTempDirectory("library-bench");
+            System.out.println("Generating " + size + " books and " + users + " users in " + dataset);
+            new SyntheticData(size, users, 0, 0, 42).writeTo(dataset);
+            Map<String, String> overrides = new HashMap<>();
+            overrides.put("bench.books", String.valueOf(size));
+            overrides.put("bench.users", String.valueOf(users));
+            overrides.put("bench.lookupKeys", "1024");
+            try {
+                for (Benchmark benchmark : lookups) {
+                    System.out.println("# " + benchmark.name + ", " + size + " books");
+                    results.computeIfAbsent(benchmark.name, k -> new ArrayList<>())
+                            .add(summarize(fork(benchmark, dataset, overrides)));
+                }
+            } finally {
+                deleteTree(dataset);
+            }
+        }
+
+        boolean flat = true;
+        System.out.println();
+        System.out.println(String.format("%-24s %10s %14s %12s  %s", "Benchmark", "Books", "Score", "StdDev", "Slowdown"));
+        for (Map.Entry<String, List<double[]>> entry : results.entrySet()) {
+            double smallest = entry.getValue().get(0)[0];
+            for (int i = 0; i < sizes.size(); i++) {
+                double[] result = entry.getValue().get(i);
+                double slowdown = smallest / result[0];
+                String verdict = String.format("%.2fx", slowdown);
+                if (slowdown > SCALING_LIMIT) {
+                    verdict += "  GREW WITH SIZE";
+                    flat = false;
+                }
+                System.out.println(String.format("%-24s %10d %14.3f %12.3f  %s", entry.getKey(), sizes.get(i), result[0],
+                        result[1], verdict));
+            }
+        }
+        System.out.println(flat ? "Lookups stay flat as the catalogue grows." : "Lookups slowed by more than " + SCALING_LIMIT + "x.");
+        return flat;
+    }
+
+    // Starts a JVM in a scratch copy of the dataset and collects the RESULT lines it prints. Overrides
+    // replace properties of the same name passed on from this JVM.
+    private static List<Double> fork(Benchmark benchmark, Path dataset, Map<String, String> overrides)
+            throws IOException, InterruptedException {
+        Path workDir = Files.createTempDirectory("library-fork");
+        try (Stream<Path> files = Files.list(dataset)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, workDir.resolve(file.getFileName()));
+            }
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if ((name.startsWith("library.") || name.startsWith("bench.")) && !overrides.containsKey(name)) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        for (Map.Entry<String, String> entry : overrides.entrySet()) {
+            command.add("-D" + entry.getKey() + "=" + entry.getValue());
+        }
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        command.add(LibraryBenchmark.class.getName());
+        command.add("--fork");
+        command.add(benchmark.name);
+
+        Process process = new ProcessBuilder(command).directory(workDir.toFile()).redirectErrorStream(true).start();
+        List<Double> scores = new ArrayList<>();
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(RESULT)) {
+                    String[] parts = line.split("\t");
+                    System.out.println(String.format("%-12s %14.3f %s", parts[1] + ":", Double.parseDouble(parts[2]), benchmark.units()));
+                    if (parts[1].startsWith("Iteration")) {
+                        scores.add(Double.parseDouble(parts[2]));
+                    }
+                } else {
+                    output.append(line).append('\n');
+                }
+            }
+        }
+        int status = process.waitFor();
+        deleteTree(workDir);
+        if (status != 0 || scores.isEmpty()) {
+            throw new IOException("Fork for " + benchmark.name + " failed with status " + status + ":\n" + output);
+        }
+        return scores;
+    }
+
+    static String absoluteClassPath() {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparator);
+            }
+            sb.append(Paths.get(entry).toAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    // Mean and sample standard deviation.
+    private static double[] summarize(List<Double> scores) {
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.size();
+        double squares = 0;
+        for (double score : scores) {
+            squares += (score - mean) * (score - mean);
+        }
+        double deviation = scores.size() > 1 ? Math.sqrt(squares / (scores.size() - 1)) : 0;
+        return new double[] { mean, deviation, scores.size() };
+    }
+
+    // Prints the result table, with the change from the baseline when one is given. Returns true if
+    // any benchmark is worse than the baseline by more than the tolerance.
+    private static boolean report(List<Benchmark> selected, Map<String, double[]> results) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        String baselineFile = System.getProperty("bench.baseline");
+        if (baselineFile != null) {
+            for (String line : Files.readAllLines(Paths.get(baselineFile), StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t");
+                if (parts.length == 2) {
+                    baseline.put(parts[0], Double.parseDouble(parts[1]));
+                }
+            }
+        }
+        boolean regressed = false;
+        System.out.println();
+        System.out.println(String.format("%-24s %4s %14s %12s  %-6s %s", "Benchmark", "Cnt", "Score", "StdDev", "Units",
+                baseline.isEmpty() ? "" : "vs baseline"));
+        for (Benchmark benchmark : selected) {
+            double[] result = results.get(benchmark.name);
+            String change = "";
+            Double before = baseline.get(benchmark.name);
+            if (before != null && before > 0) {
+                // Higher is better for throughput, lower is better for time per operation.
+                double better = benchmark.singleShot ? (before - result[0]) / before : (result[0] - before) / before;
+                change = String.format("%+.1f%%", better * 100);
+                if (better * 100 < -TOLERANCE) {
+                    change += "  REGRESSION";
+                    regressed = true;
+                }
+            }
+            System.out.println(String.format("%-24s %4d %14.3f %12.3f  %-6s %s", benchmark.name, (int) result[2],
+                    result[0], result[1], benchmark.units(), change));
+        }
+        return regressed;
+    }
+
+    private static void runFork(String name) throws Exception {
+        Benchmark benchmark = null;
+        for (Benchmark candidate : BENCHMARKS) {
+            if (candidate.name.equals(name)) {
+                benchmark = candidate;
+            }
+        }
+        if (benchmark == null) {
+            throw new IllegalArgumentException("Unknown benchmark " + name);
+        }
+        if (benchmark.name.equals("loadData")) {
+            measureSingleShot(i -> {
+                LibrarySystem library = quietly(LibrarySystem::new);
+                quietly(() -> {
+                    library.loadData();
+                    return null;
+                });
+                library.shutdown();
+                return library.getBooks().size();
+            });
+            return;
+        }
+
+        LibrarySystem library = quietly(() -> {
+            LibrarySystem loaded = new LibrarySystem();
+            loaded.loadData();
+            return loaded;
+        });
+        Operation operation = setUp(benchmark.name, library);
+        if (benchmark.singleShot) {
+            measureSingleShot(operation);
+        } else {
+            measureThroughput(operation);
+        }
+        library.shutdown();
+    }
+
+    // Builds the measured operation. Inputs are precomputed so the loop measures only the call.
+    private static Operation setUp(String name, LibrarySystem library) throws Exception {
+        Random random = new Random(7);
+        int mask = Integer.highestOneBit(Math.max(1, Integer.getInteger("bench.lookupKeys", 65536))) - 1;
+        String[] bookIds = new String[mask + 1];
+        String[] userIds = new String[mask + 1];
+        for (int i = 0; i <= mask; i++) {
+            bookIds[i] = SyntheticData.bookId(1 + random.nextInt(BOOKS));
+            userIds[i] = SyntheticData.userId(1 + random.nextInt(USERS));
+        }
+        switch (name) {
+            case "findBookById":
+                return i -> library.findBookById(bookIds[i & mask]).hashCode();
+            case "findUserById":
+                return i -> library.findUserById(userIds[i & mask]).hashCode();
+            case "searchBooks": {
+                String[] queries = new String[1024];
+                for (int i = 0; i < queries.length; i++) {
+                    String word = SyntheticData.word(random.nextInt(SyntheticData.VOCABULARY));
+                    // Every fourth query is a word prefix, which the index also matches.
+                    queries[i] = i % 4 == 0 ? word.substring(0, Math.max(2, word.length() - 2)) : word;
+                }
+                return i -> library.searchBooks(queries[i & 1023], SearchIndex.Field.ANY).size();
+            }
+            case "generateTransactionId":
+                return i -> library.generateTransactionId().length();
+            case "findActiveTransaction": {
+                List<String[]> loans = new ArrayList<>();
+                for (User user : library.getUsers()) {
+                    for (String bookId : user.getBorrowedBooks()) {
+                        loans.add(new String[] { user.getId(), bookId });
+                    }
+                }
+                if (loans.isEmpty()) {
+                    throw new IllegalStateException("bench.loans is 0; there are no open loans to find.");
+                }
+                String[][] pairs = loans.toArray(new String[0][]);
+                return i -> library.findActiveTransaction(pairs[i % pairs.length][0], pairs[i % pairs.length][1]).hashCode();
+            }
+            case "transactionsBetween": {
+                // A week of loans somewhere in the two years of generated history.
+                LocalDate[] starts = new LocalDate[1024];
+                for (int i = 0; i < starts.length; i++) {
+                    starts[i] = LocalDate.now().minusDays(30 + random.nextInt(730));
+                }
+                return i -> {
+                    int count = 0;
+                    for (Transaction transaction : library.getTransactionsBorrowedBetween(starts[i & 1023], starts[i & 1023].plusDays(6))) {
+                        count++;
+                    }
+                    return count;
+                };
+            }
+            case "borrowReturnCycle": {
+                // Users with nothing out borrow books still marked available, and give them straight back.
+                List<User> idle = new ArrayList<>();
+                for (User user : library.getUsers()) {
+                    if (user.getBorrowedCount() == 0) {
+                        idle.add(user);
+                    }
+                }
+                User[] borrowers = idle.toArray(new User[0]);
+                List<String> free = new ArrayList<>();
+                for (Book book : library.getBooks()) {
+                    if (book.isAvailable()) {
+                        free.add(book.getBookId());
+                    }
+                }
+                String[] available = free.toArray(new String[0]);
+                return i -> {
+                    User user = borrowers[i % borrowers.length];
+                    String bookId = available[i % available.length];
+                    library.borrowBook(user, bookId);
+                    library.returnBook(user, bookId);
+                    return 1;
+                };
+            }
+            case "returnWithHolds": {
+                // Each popular book is out on loan with a long queue of holds. Every call has the patron
+                // whose copy is waiting pick it up and return it, which hands it to the next in line, and
+                // then join the back of the queue again, so the queues keep their length.
+                List<User> idle = new ArrayList<>();
+                for (User user : library.getUsers()) {
+                    if (user.getBorrowedCount() == 0) {
+                        idle.add(user);
+                    }
+                }
+                if (idle.size() <= HOLDS) {
+                    throw new IllegalStateException("bench.holds must be below the " + idle.size() + " users with no loans.");
+                }
+                String[] titles = new String[HOLD_TITLES];
+                int next = 0;
+                for (Book book : library.getBooks()) {
+                    if (next < titles.length && book.isAvailable()) {
+                        titles[next++] = book.getBookId();
+                    }
+                }
+                int user = 0;
+                library.beginBatch();
+                for (String bookId : titles) {
+                    User first = idle.get(user++ % idle.size());
+                    library.borrowBook(first, bookId);
+                    for (int h = 0; h < HOLDS; h++) {
+                        library.placeHold(idle.get(user++ % idle.size()), bookId);
+                    }
+                    library.returnBook(first, bookId);
+                }
+                library.endBatch();
+                return i -> {
+                    String bookId = titles[i % titles.length];
+                    User holder = library.findUserById(library.getReadyHold(bookId).getUserId());
+                    library.borrowBook(holder, bookId);
+                    library.returnBook(holder, bookId);
+                    return library.placeHold(holder, bookId);
+                };
+            }
+            case "saveAllData": {
+                // One catalogue change per checkpoint, so each call writes books.txt and trims the journal.
+                Book book = library.findBookById(bookIds[0]);
+                return i -> {
+                    library.updateBook(book.getBookId(), book.getTitle() + (i % 2 == 0 ? " II" : ""), book.getAuthor());
+                    quietly(() -> {
+                        library.saveAllData();
+                        return null;
+                    });
+                    return i;
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown benchmark " + name);
+        }
+    }
+
+    private static void measureThroughput(Operation operation) throws Exception {
+        int next = 0;
+        for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+            long started = System.nanoTime();
+            long deadline = started + ITERATION_MILLIS * 1000000L;
+            long operations = 0;
+            long now;
+            int hash = 0;
+            do {
+                // Check the clock once per batch of 64 calls.
+                for (int k = 0; k < 64; k++) {
+                    hash += operation.run(next++);
+                }
+                operations += 64;
+                now = System.nanoTime();
+            } while (now < deadline);
+            sink = hash;
+            emit(iteration, operations / ((now - started) / 1e9));
+        }
+    }
+
+    private static void measureSingleShot(Operation operation) throws Exception {
+        for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+            System.gc();
+            long started = System.nanoTime();
+            sink = operation.run(iteration);
+            emit(iteration, (System.nanoTime() - started) / 1e6);
+        }
+    }
+
+    private static void emit(int iteration, double score) {
+        String label = iteration < 0 ? "Warmup " + (iteration + WARMUP + 1) : "Iteration " + (iteration + 1);
+        System.out.println(RESULT + label + "\t" + score);
+    }
+
+    interface Action<T> {
+        T run() throws Exception;
+    }
+
+    // The library reports loads and checkpoints on stdout; that would interleave with the results.
+    static <T> T quietly(Action<T> action) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        try {
+            return action.run();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+// LibraryEvents.java - Java Flight Recorder events for loads, checkpoints, searches, lending and overdue loans
+import java.io.File;
+import jdk.jfr.*;
+
+// Each event is begun before the work and committed after it only when shouldCommit() says a
+// recording wants it (enabled, and longer than the configured threshold). With no recording running
+// begin/end/shouldCommit are no-ops and the JIT removes the event object, so the fields are only
+// filled in, and IDs only looked up, for events that will actually be written. library.jfc holds
+// the thresholds used in production.
+public class LibraryEvents {
+    private LibraryEvents() {
+    }
+
+    @Name("library.FileLoad")
+    @Label("File Load")
+    @Category("Library")
+    @Description("A data file read at startup, or the history read on first use")
+    @StackTrace(false)
+    public static class FileLoad extends Event {
+        @Label("File")
+        String file;
+        @Label("Records")
+        long records;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        public static FileLoad start() {
+            FileLoad event = new FileLoad();
+            event.begin();
+            return event;
+        }
+
+        public void finish(String path, long recordCount) {
+            end();
+            if (shouldCommit()) {
+                file = path;
+                records = recordCount;
+                bytes = new File(path).length();
+                commit();
+            }
+        }
+    }
+
+    @Name("library.SavePhase")
+    @Label("Checkpoint Phase")
+    @Category("Library")
+    @Description("One phase of a checkpoint: preparing under the state lock, writing a file, or trimming the journal")
+    @StackTrace(false)
+    public static class SavePhase extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("File")
+        String file;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        public static SavePhase start() {
+            SavePhase event = new SavePhase();
+            event.begin();
+            return event;
+        }
+
+        public void finish(String phaseName, String path) {
+            end();
+            if (shouldCommit()) {
+                phase = phaseName;
+                file = path;
+                bytes = path == null ? 0 : new File(path).length();
+                commit();
+            }
+        }
+    }
+
+    @Name("library.Search")
+    @Label("Catalogue Search")
+    @Category("Library")
+    @StackTrace(false)
+    public static class Search extends Event {
+        @Label("Query")
+        String query;
+        @Label("Field")
+        String field;
+        @Label("Hits")
+        int hits;
+
+        public static Search start() {
+            Search event = new Search();
+            event.begin();
+            return event;
+        }
+
+        public void finish(String searchTerm, Object searchField, int hitCount) {
+            end();
+            if (shouldCommit()) {
+                query = searchTerm;
+                field = String.valueOf(searchField);
+                hits = hitCount;
+                commit();
+            }
+        }
+    }
+
+    @Name("library.Lending")
+    @Label("Borrow or Return")
+    @Category("Library")
+    @StackTrace(false)
+    public static class Lending extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("User ID")
+        String userId;
+        @Label("Book ID")
+        String bookId;
+        @Label("Transaction ID")
+        String transactionId;
+        @Label("Succeeded")
+        boolean succeeded;
+
+        public static Lending start() {
+            Lending event = new Lending();
+            event.begin();
+            return event;
+        }
+
+        // transaction is null for returns and failed borrows.
+        public void finish(String operationName, User user, String book, boolean ok, Transaction transaction) {
+            end();
+            if (shouldCommit()) {
+                operation = operationName;
+                userId = user.getId();
+                bookId = book;
+                succeeded = ok;
+                transactionId = transaction == null ? null : transaction.getTransactionId();
+                commit();
+            }
+        }
+    }
+
+    @Name("library.Overdue")
+    @Label("Loan Overdue")
+    @Category("Library")
+    @Description("An open loan passing its due date")
+    @StackTrace(false)
+    public static class Overdue extends Event {
+        @Label("Transaction ID")
+        String transactionId;
+        @Label("User ID")
+        String userId;
+        @Label("Book ID")
+        String bookId;
+        @Label("Due Date")
+        String dueDate;
+
+        public static void emit(OverdueScheduler.Loan loan) {
+            Overdue event = new Overdue();
+            if (event.isEnabled()) {
+                event.transactionId = loan.getTransactionId();
+                event.userId = loan.getUserId();
+                event.bookId = loan.getBookId();
+                event.dueDate = loan.getDueDate().toString();
+                event.commit();
+            }
+        }
+    }
+}
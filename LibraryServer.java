@@ -0,0 +1,104 @@
+// LibraryServer.java - Multi-session TCP front end sharing one LibrarySystem
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LibraryServer {
+    private static final int MAX_SESSIONS = Integer.getInteger("library.server.maxSessions", 10000);
+    private static final int IDLE_TIMEOUT_MILLIS = Integer.getInteger("library.server.idleTimeoutMillis", 30 * 60 * 1000);
+
+    private final LibrarySystem library;
+    private final int port;
+    private final Semaphore sessionSlots;
+    private final AtomicInteger sessionCount;
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+
+    public LibraryServer(LibrarySystem library, int port) {
+        this.library = library;
+        this.port = port;
+        this.sessionSlots = new Semaphore(MAX_SESSIONS);
+        this.sessionCount = new AtomicInteger();
+    }
+
+    public void start() throws IOException {
+        ExecutorService sessions = newSessionExecutor();
+        serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        running = true;
+        System.out.println("Library server listening on " + serverSocket.getLocalSocketAddress());
+
+        try {
+            while (running) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    if (!running) {
+                        break;
+                    }
+                    throw e;
+                }
+                if (!sessionSlots.tryAcquire()) {
+                    rejectBusy(socket);
+                    continue;
+                }
+                socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+                sessions.execute(() -> runSession(socket));
+            }
+        } finally {
+            sessions.shutdownNow();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing server socket: " + e.getMessage());
+        }
+    }
+
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    private void runSession(Socket socket) {
+        sessionCount.incrementAndGet();
+        try (Socket s = socket) {
+            new ClientSession(library, s).run();
+        } catch (IOException e) {
+            // The client went away or sat idle past the timeout; nothing to report back to it.
+        } finally {
+            sessionCount.decrementAndGet();
+            sessionSlots.release();
+        }
+    }
+
+    private void rejectBusy(Socket socket) {
+        try (Socket s = socket; PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"), true)) {
+            out.println("ERR Server busy, try again later.");
+        } catch (IOException e) {
+            // Dropping the connection is the rejection.
+        }
+    }
+
+    // One virtual thread per session when the JVM has them (Java 21+); otherwise small-stack daemon threads.
+    private static ExecutorService newSessionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger ids = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, "library-session-" + ids.incrementAndGet(), 256 * 1024);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
@@ -1,39 +1,218 @@
 // LibrarySystem.java
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+// Borrow and return hold the shared state lock plus the book's stripe, so lending on different books
+// runs in parallel. Catalogue/user changes and checkpoints take the state lock exclusively.
 public class LibrarySystem {
-    private List<Book> books;
-    private List<User> users;
-    private List<Transaction> transactions;
+    private static final int MAX_BORROWED_BOOKS = 3;
+    private static final int AUTOCOMPLETE_LIMIT = Integer.getInteger("library.autocomplete.limit", 10);
+    private static final int CHECKPOINT_EVERY = Integer.getInteger("library.checkpoint.records", 1000);
+    private static final String SNAPSHOT_FILE = "library.dat";
+    private static final String HISTORY_FILE = "history.dat";
+    private static final String FORMAT_FILE = "data.format";
+    private static final long FLUSH_INTERVAL_MILLIS = Long.getLong("library.flush.intervalMillis", 30000L);
+    private static final int DEFAULT_LOAN_DAYS = Integer.getInteger("library.loanDays", 14);
+    private static final int MAX_HOLDS = Integer.getInteger("library.holds.max", 5);
+    private static final int PICKUP_DAYS = Integer.getInteger("library.holds.pickupDays", 3);
+    private static final long ROLL_BYTES = Long.getLong("library.history.rollBytes", 4L << 20);
+    
+    private IndexedRegistry<Book> books;
+    private IndexedRegistry<User> users;
+    private Map<String, List<User>> usersByName;
+    private SessionCache sessions;
+    private volatile TransactionLedger transactions;
+    private HistorySegments history;
+    private TransactionIdAllocator transactionIds;
+    private Journal journal;
+    private SearchIndex searchIndex;
+    private SearchCache searchCache;
+    private OverdueScheduler overdue;
+    private HoldQueues holds;
+    private ReentrantReadWriteLock stateLock;
+    private StripedLock bookLocks;
+    private volatile boolean historyLoaded;
+    private boolean rewriteHistory;
+    private boolean binaryFormat;
+    private boolean historyBinary;
+    private String recordedFormat;
+    private String historyFirstId;
+    private long historyRecords;
+    private boolean usersChanged;
+    private boolean booksChanged;
+    private long savedSequence = -1;
+    private long catalogueLength = -1;
+    private long snapshotLength;
+    private boolean writeEverything;
+    private boolean dueDatesFilled;
+    private final Object checkpointLock = new Object();
+    private volatile ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean batching;
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Timer loadTimer = metrics.timer("loadData");
+    private final Metrics.Timer saveTimer = metrics.timer("saveAllData");
+    private final Metrics.Timer loginTimer = metrics.timer("login");
+    private final Metrics.Timer borrowTimer = metrics.timer("borrowBook");
+    private final Metrics.Timer returnTimer = metrics.timer("returnBook");
+    private final Metrics.Timer searchTimer = metrics.timer("searchBooks");
+    private final Metrics.Timer autocompleteTimer = metrics.timer("autocomplete");
     private User loggedInUser;
     private Scanner scanner;
     
     public LibrarySystem() {
-        books = new ArrayList<>();
-        users = new ArrayList<>();
-        transactions = new ArrayList<>();
+        books = new IndexedRegistry<>(Book::getBookId);
+        users = new IndexedRegistry<>(User::getId);
+        usersByName = new HashMap<>();
+        sessions = new SessionCache(Integer.getInteger("library.session.cacheSize", 10000),
+                Long.getLong("library.session.ttlMillis", 30 * 60 * 1000L));
+        transactions = new TransactionLedger();
+        transactionIds = new TransactionIdAllocator("transactions.seq");
+        history = new HistorySegments(Paths.get("history"));
+        searchIndex = new SearchIndex();
+        searchCache = new SearchCache(Integer.getInteger("library.search.cacheSize", 1024),
+                Long.getLong("library.search.cacheResults", 1000000L));
+        metrics.report(searchCache::stats);
+        overdue = new OverdueScheduler(LibraryEvents.Overdue::emit, this::expireHolds);
+        holds = new HoldQueues();
+        stateLock = new ReentrantReadWriteLock();
+        bookLocks = new StripedLock(Integer.getInteger("library.lockStripes", 256));
+        journal = new Journal("journal.txt", "journal.lsn",
+                Integer.getInteger("library.journal.syncEvery", 1),
+                Long.getLong("library.journal.syncMillis", 0L));
+        recordedFormat = readFormat();
+        binaryFormat = System.getProperty("library.format", recordedFormat == null ? "text" : recordedFormat).equalsIgnoreCase("binary");
         scanner = new Scanner(System.in);
     }
     
     public void loadData() {
-        loadUsers();
-        loadBooks();
-        loadTransactions();
+        long started = System.nanoTime();
+        try {
+            load();
+        } finally {
+            loadTimer.record(started);
+        }
     }
     
-    private void loadUsers() {
-        try (BufferedReader br = new BufferedReader(new FileReader("users.txt"))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 4) {
-                    users.add(new User(parts[0], parts[1], parts[2], parts[3]));
+    // Throws IllegalStateException if the data files are recorded in the other format.
+    public void checkFormat() {
+        String format = binaryFormat ? "binary" : "text";
+        if (recordedFormat != null && !recordedFormat.equals(format)) {
+            throw new IllegalStateException("The data files are in " + recordedFormat + " format (see " + FORMAT_FILE
+                    + "), not " + format + ". Run without -Dlibrary.format, or use --convert to change formats.");
+        }
+    }
+    
+    private void load() {
+        checkFormat();
+        loadSegments();
+        if (binaryFormat && new File(SNAPSHOT_FILE).exists()) {
+            loadSnapshot();
+        } else {
+            loadUsers();
+            loadBooks();
+            transactionIds.load();
+            loadTransactions();
+            // Text files read in binary mode are converted, history included, at the first checkpoint.
+            rewriteHistory |= binaryFormat;
+        }
+        loadHolds();
+        deriveAvailability();
+        usersChanged = false;
+        booksChanged = false;
+        transactions.takeOpenLoansChanged();
+        holds.takeChanged();
+        savedSequence = binaryFormat || new File("transactions.seq").exists() ? transactionIds.lastIssued() : -1;
+        replayJournal();
+        expireHolds();
+        rebuildOverdue();
+        startFlusher();
+        overdue.start();
+    }
+    
+    // Reads the text files and rewrites everything, closed history included, in the other format.
+    // The old files are left behind; data.format, written last, says which set is current.
+    public void convertSnapshot(boolean toBinary) {
+        if ((toBinary ? "binary" : "text").equals(recordedFormat)) {
+            System.out.println("The data files are already in " + recordedFormat + " format.");
+            return;
+        }
+        binaryFormat = !toBinary;
+        loadData();
+        ensureHistoryLoaded();
+        binaryFormat = toBinary;
+        rewriteHistory = true;
+        writeEverything = true;
+        saveAllData();
+        shutdown();
+        System.out.println("Converted data files to " + (toBinary ? SNAPSHOT_FILE + " and " + HISTORY_FILE : "text") + ".");
+    }
+    
+    private void replayJournal() {
+        LibraryEvents.FileLoad load = LibraryEvents.FileLoad.start();
+        try {
+            int replayed = journal.replay(this::applyRecord);
+            load.finish("journal.txt", replayed);
+            if (replayed > 0) {
+                System.out.println("Replayed " + replayed + " journal records.");
+            }
+            journal.open();
+        } catch (IOException e) {
+            System.out.println("Error reading journal.txt: " + e.getMessage());
+        }
+        maybeCheckpoint();
+    }
+    
+    private void loadSnapshot() {
+        LibraryEvents.FileLoad load = LibraryEvents.FileLoad.start();
+        long start = System.nanoTime();
+        try {
+            BinarySnapshot.State state = BinarySnapshot.readState(Paths.get(SNAPSHOT_FILE));
+            for (User user : state.users) {
+                registerUser(user);
+            }
+            for (Book book : state.books) {
+                if (books.add(book)) {
+                    searchIndex.add(book);
                 }
             }
-            System.out.println("Users loaded successfully.");
-        } catch (FileNotFoundException e) {
+            transactionIds.observe(state.lastTransactionNumber);
+            for (Transaction transaction : state.openLoans) {
+                restoreTransaction(transaction);
+            }
+            historyBinary = true;
+            catalogueLength = state.catalogueLength;
+            snapshotLength = BinarySnapshot.validLength(Paths.get(SNAPSHOT_FILE));
+            reportLoad("Snapshot", SNAPSHOT_FILE, state.users.size() + state.books.size() + state.openLoans.size(), start, load);
+        } catch (IOException e) {
+            System.out.println("Error reading " + SNAPSHOT_FILE + ": " + e.getMessage());
+        }
+    }
+    
+    private void loadUsers() {
+        LibraryEvents.FileLoad load = LibraryEvents.FileLoad.start();
+        long start = System.nanoTime();
+        try {
+            long count = CsvLoader.load(Paths.get("users.txt"),
+                    parts -> parts.size() == 4 ? new User(parts.get(0), parts.get(1), parts.get(2), parts.get(3)) : null,
+                    this::registerUser);
+            reportLoad("Users", "users.txt", count, start, load);
+        } catch (NoSuchFileException e) {
             System.out.println("users.txt not found. Creating new file...");
             createDefaultUsers();
         } catch (IOException e) {
@@ -42,16 +221,14 @@ public class LibrarySystem {
     }
     
     private void loadBooks() {
-        try (BufferedReader br = new BufferedReader(new FileReader("books.txt"))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 4) {
-                    books.add(new Book(parts[0], parts[1], parts[2], Boolean.parseBoolean(parts[3])));
-                }
-            }
-            System.out.println("Books loaded successfully.");
-        } catch (FileNotFoundException e) {
+        LibraryEvents.FileLoad load = LibraryEvents.FileLoad.start();
+        long start = System.nanoTime();
+        try {
+            long count = CsvLoader.load(Paths.get("books.txt"),
+                    parts -> parts.size() == 4 ? parts.toArray() : null,
+                    parts -> applyAddBook(parts[0], parts[1], parts[2], Boolean.parseBoolean(parts[3])));
+            reportLoad("Books", "books.txt", count, start, load);
+        } catch (NoSuchFileException e) {
             System.out.println("books.txt not found. Creating new file...");
             createDefaultBooks();
         } catch (IOException e) {
@@ -59,76 +236,542 @@ public class LibrarySystem {
         }
     }
     
+    // Holds are kept in holds.txt in both formats.
+    private void loadHolds() {
+        LibraryEvents.FileLoad load = LibraryEvents.FileLoad.start();
+        long start = System.nanoTime();
+        try {
+            long count = CsvLoader.load(Paths.get("holds.txt"),
+                    parts -> parts.size() == 4 ? new HoldQueues.Hold(parts.get(1), parts.get(0), parts.get(2), parts.get(3)) : null,
+                    holds::add);
+            reportLoad("Holds", "holds.txt", count, start, load);
+        } catch (NoSuchFileException e) {
+            // No holds have been checkpointed yet.
+        } catch (IOException e) {
+            System.out.println("Error reading holds.txt: " + e.getMessage());
+        }
+    }
+    
+    // A book's availability is not kept with the catalogue, so lending never dirties it: a book is
+    // out while it has an open loan or a copy set aside for a hold. The flag in books.txt and
+    // library.dat is only what it was when the file was written.
+    private void deriveAvailability() {
+        Set<String> out = new HashSet<>();
+        for (Transaction transaction : transactions.openTransactions()) {
+            out.add(transaction.getBookId());
+        }
+        for (HoldQueues.Hold hold : holds.all()) {
+            if (hold.isReady()) {
+                out.add(hold.getBookId());
+            }
+        }
+        for (Book book : books) {
+            book.setAvailable(!out.contains(book.getBookId()));
+        }
+    }
+    
+    // Only the segment index is read at startup; the segments themselves are read by history lookups.
+    private void loadSegments() {
+        try {
+            history.load();
+        } catch (IOException e) {
+            System.out.println("Error reading history/segments.idx: " + e.getMessage());
+        }
+    }
+    
+    // Only open loans are needed at startup; closed history is read on first use.
     private void loadTransactions() {
-        try (BufferedReader br = new BufferedReader(new FileReader("transactions.txt"))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 5) {
-                    transactions.add(new Transaction(parts[0], parts[1], parts[2], parts[3], parts[4]));
-                    if (parts[4].equals("null")) {
-                        User user = findUserById(parts[1]);
-                        if (user != null) {
-                            user.addBorrowedBook(parts[2]);
-                        }
-                    }
+        if (!new File("loans.txt").exists() && new File("transactions.txt").exists()) {
+            loadLegacyTransactions();
+            return;
+        }
+        LibraryEvents.FileLoad load = LibraryEvents.FileLoad.start();
+        long start = System.nanoTime();
+        try {
+            long count = CsvLoader.load(Paths.get("loans.txt"), LibrarySystem::parseTransaction, this::restoreTransaction);
+            reportLoad("Open loans", "loans.txt", count, start, load);
+        } catch (NoSuchFileException e) {
+            System.out.println("loans.txt not found. Creating new file...");
+            historyLoaded = true;
+        } catch (IOException e) {
+            System.out.println("Error reading loans.txt: " + e.getMessage());
+        }
+    }
+    
+    // transactions.txt from before loans.txt existed holds open loans too; load it whole and split it at the next checkpoint.
+    private void loadLegacyTransactions() {
+        LibraryEvents.FileLoad load = LibraryEvents.FileLoad.start();
+        long start = System.nanoTime();
+        try {
+            long count = CsvLoader.load(Paths.get("transactions.txt"), LibrarySystem::parseTransaction, this::restoreTransaction);
+            reportLoad("Transactions", "transactions.txt", count, start, load);
+        } catch (IOException e) {
+            System.out.println("Error reading transactions.txt: " + e.getMessage());
+        }
+        historyLoaded = true;
+        rewriteHistory = true;
+    }
+    
+    private static Transaction parseTransaction(CsvLoader.Fields parts) {
+        if (parts.size() == 6) {
+            return new Transaction(parts.get(0), parts.get(1), parts.get(2), parts.get(3), parts.get(4), parts.get(5));
+        }
+        return parts.size() == 5 ? new Transaction(parts.get(0), parts.get(1), parts.get(2), parts.get(3), parts.get(4)) : null;
+    }
+    
+    private void restoreTransaction(Transaction transaction) {
+        if (transaction.isOpen() && transaction.getDateDue().equals("null")) {
+            // Saved before due dates were stored: the policy in force now fixes it, and the next checkpoint saves it.
+            transaction = new Transaction(transaction.getTransactionId(), transaction.getUserId(), transaction.getBookId(),
+                    transaction.getDateBorrowed(), "null", dueDate(transaction.getUserId(), transaction.getDateBorrowed()).toString());
+            dueDatesFilled = true;
+        }
+        try {
+            transactions.add(transaction);
+        } catch (DateTimeException | NumberFormatException e) {
+            System.out.println("Skipping bad transaction record " + transaction.getTransactionId() + ": " + e.getMessage());
+            return;
+        }
+        transactionIds.observe(transaction.getTransactionId());
+        if (transaction.isOpen()) {
+            User user = findUserById(transaction.getUserId());
+            if (user != null) {
+                user.addBorrowedBook(transaction.getBookId());
+            }
+        }
+    }
+    
+    private void reportLoad(String what, String file, long records, long startNanos, LibraryEvents.FileLoad load) {
+        load.finish(file, records);
+        long micros = Math.max(1, (System.nanoTime() - startNanos) / 1000);
+        System.out.println(what + " loaded successfully. (" + records + " records, " + (records * 1000000 / micros) + " records/sec)");
+    }
+    
+    // Taken under the checkpoint lock too, so the recent-history file is not read while a checkpoint writes it.
+    private void ensureHistoryLoaded() {
+        if (historyLoaded) {
+            return;
+        }
+        synchronized (checkpointLock) {
+            stateLock.writeLock().lock();
+            try {
+                if (!historyLoaded) {
+                    loadHistory();
                 }
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+        }
+    }
+    
+    // Closed loans not yet rolled into segments are appended to the ledger as they are read and put
+    // into ID order once at the end. Leading records a roll already took are skipped.
+    private void loadHistory() {
+        LibraryEvents.FileLoad load = LibraryEvents.FileLoad.start();
+        long[] count = new long[1];
+        long[] rolled = new long[1];
+        Consumer<Transaction> append = transaction -> {
+            if (count[0]++ == 0) {
+                historyFirstId = transaction.getTransactionId();
+                rolled[0] = history.alreadyRolled(historyFirstId);
+            }
+            if (count[0] > rolled[0] && !transaction.isOpen()) {
+                try {
+                    transactions.appendHistory(transaction);
+                } catch (DateTimeException | NumberFormatException e) {
+                    System.out.println("Skipping bad transaction record " + transaction.getTransactionId() + ": " + e.getMessage());
+                }
+            }
+        };
+        String file = historyBinary ? HISTORY_FILE : "transactions.txt";
+        try {
+            if (historyBinary) {
+                BinarySnapshot.readHistory(Paths.get(file), append);
+            } else {
+                CsvLoader.load(Paths.get(file), LibrarySystem::parseTransaction, append);
             }
-            System.out.println("Transactions loaded successfully.");
-        } catch (FileNotFoundException e) {
-            System.out.println("transactions.txt not found. Creating new file...");
+        } catch (NoSuchFileException e) {
+            // No closed loans have been checkpointed yet.
         } catch (IOException e) {
-            System.out.println("Error reading transactions.txt: " + e.getMessage());
+            System.out.println("Error reading " + file + ": " + e.getMessage());
+            return;
         }
+        transactions.sortHistory();
+        historyRecords = count[0];
+        historyLoaded = true;
+        load.finish(file, count[0]);
     }
     
     private void createDefaultUsers() {
-        users.add(new User("U001", "John Doe", "pass123", "user"));
-        users.add(new User("U002", "Jane Smith", "abc123", "user"));
-        users.add(new User("A001", "Admin", "admin123", "admin"));
+        registerUser(new User("U001", "John Doe", PasswordHasher.hash("pass123"), "user"));
+        registerUser(new User("U002", "Jane Smith", PasswordHasher.hash("abc123"), "user"));
+        registerUser(new User("A001", "Admin", PasswordHasher.hash("admin123"), "admin"));
         saveUsers();
     }
     
     private void createDefaultBooks() {
-        books.add(new Book("B001", "The Great Gatsby", "F. Scott Fitzgerald", true));
-        books.add(new Book("B002", "To Kill a Mockingbird", "Harper Lee", true));
-        books.add(new Book("B003", "1984", "George Orwell", false));
+        applyAddBook("B001", "The Great Gatsby", "F. Scott Fitzgerald", true);
+        applyAddBook("B002", "To Kill a Mockingbird", "Harper Lee", true);
+        applyAddBook("B003", "1984", "George Orwell", false);
         saveBooks();
     }
     
+    // Under the write lock a checkpoint marks the journal, encodes the small files (open loans, holds)
+    // and copies the user and book lists by reference. The catalogue files and closed history are
+    // encoded after the lock is released, and every file is written to a temp file renamed into place.
+    // A record changed in between may be written with the change; its journal record follows the mark
+    // and is replayed over it. Once the recent-history file passes library.history.rollBytes
+    // (default 4 MB), its closed loans are rolled into history segments instead, dropped from the
+    // ledger and the file emptied, so memory holds open loans and recent history only.
     public void saveAllData() {
-        saveUsers();
-        saveBooks();
-        saveTransactions();
+        long started = System.nanoTime();
+        try {
+            checkpoint();
+        } finally {
+            saveTimer.record(started);
+        }
     }
     
-    private void saveUsers() {
-        try (PrintWriter pw = new PrintWriter(new FileWriter("users.txt"))) {
-            for (User user : users) {
-                pw.println(user.toFileString());
+    private void checkpoint() {
+        synchronized (checkpointLock) {
+            List<FileWrite> writes = new ArrayList<>();
+            long coveredLsn;
+            int historyWritten;
+            boolean historyRewritten;
+            LibraryEvents.SavePhase prepare = LibraryEvents.SavePhase.start();
+            stateLock.writeLock().lock();
+            try {
+                coveredLsn = journal.mark();
+                historyRewritten = rewriteHistory;
+                historyWritten = prepareSnapshot(writes);
+                queueFormat(writes);
+            } catch (IOException e) {
+                System.out.println("Error writing checkpoint: " + e.getMessage());
+                return;
+            } finally {
+                stateLock.writeLock().unlock();
+                prepare.finish("prepare", null);
+            }
+            try {
+                for (FileWrite write : writes) {
+                    write.run();
+                }
+                LibraryEvents.SavePhase trim = LibraryEvents.SavePhase.start();
+                journal.checkpointed(coveredLsn);
+                trim.finish("journal", "journal.txt");
+                transactions.historyWritten(historyWritten);
+                if (historyRewritten) {
+                    rewriteHistory = false;
+                    historyBinary = binaryFormat;
+                }
+            } catch (IOException e) {
+                System.out.println("Error writing checkpoint: " + e.getMessage());
+                writeEverything = true;
+            }
+        }
+    }
+    
+    // Queues the writes for everything changed since the last checkpoint and returns how many
+    // pending closed loans they append to the recent-history file.
+    private int prepareSnapshot(List<FileWrite> writes) throws IOException {
+        boolean roll = historyBytes() >= ROLL_BYTES;
+        if ((rewriteHistory || roll) && !historyLoaded) {
+            loadHistory();
+        }
+        boolean all = writeEverything;
+        writeEverything = false;
+        boolean usersDirty = all | usersChanged;
+        boolean booksDirty = all | booksChanged;
+        usersChanged = false;
+        booksChanged = false;
+        List<User> userList = usersDirty ? users.snapshot() : null;
+        List<Book> bookList = booksDirty ? books.snapshot() : null;
+        boolean rewrite = rewriteHistory;
+        boolean loansDirty = transactions.takeOpenLoansChanged() | all | rewrite | dueDatesFilled;
+        dueDatesFilled = false;
+        long sequence = transactionIds.lastIssued();
+        boolean sequenceDirty = all || sequence != savedSequence;
+        savedSequence = sequence;
+        if (holds.takeChanged() | all) {
+            byte[] content = holdsFile();
+            queue(writes, "holds.txt", () -> AtomicFile.replace(Paths.get("holds.txt"), content));
+        }
+        
+        List<Transaction> pending = transactions.pendingHistory();
+        List<Transaction> closed = rewrite || roll ? closedTransactions() : pending;
+        boolean counted = historyLoaded;
+        if (roll) {
+            String firstId = historyFirstId;
+            long records = historyRecords;
+            queue(writes, "history/segments.idx", () -> {
+                history.roll(closed, firstId, records);
+                dropRolled(closed);
+            });
+        }
+        
+        if (binaryFormat) {
+            if (rewrite || roll) {
+                List<Transaction> kept = roll ? Collections.emptyList() : closed;
+                queue(writes, HISTORY_FILE, () -> {
+                    AtomicFile.replace(Paths.get(HISTORY_FILE), BinarySnapshot.encodeHistory(kept, true));
+                    historyReplaced(kept);
+                });
+            } else if (!closed.isEmpty()) {
+                queue(writes, HISTORY_FILE, () -> {
+                    long valid = BinarySnapshot.validLength(Paths.get(HISTORY_FILE));
+                    AtomicFile.append(Paths.get(HISTORY_FILE), BinarySnapshot.encodeHistory(closed, valid == 0), valid);
+                    historyAppended(closed, counted);
+                });
+            }
+            if (usersDirty || booksDirty || loansDirty || sequenceDirty) {
+                byte[] loans = BinarySnapshot.encodeLoans(new ArrayList<>(transactions.openTransactions()), sequence);
+                Path file = Paths.get(SNAPSHOT_FILE);
+                // Lending appends a loan block; the file is rewritten once those outgrow the catalogue.
+                if (usersDirty || booksDirty || catalogueLength < 0 || snapshotLength + loans.length > 2 * catalogueLength) {
+                    List<User> allUsers = userList != null ? userList : users.snapshot();
+                    List<Book> allBooks = bookList != null ? bookList : books.snapshot();
+                    queue(writes, SNAPSHOT_FILE, () -> {
+                        byte[] catalogue = BinarySnapshot.encodeCatalogue(allUsers, allBooks);
+                        byte[] content = Arrays.copyOf(catalogue, catalogue.length + loans.length);
+                        System.arraycopy(loans, 0, content, catalogue.length, loans.length);
+                        AtomicFile.replace(file, content);
+                        catalogueLength = catalogue.length;
+                        snapshotLength = content.length;
+                    });
+                } else {
+                    queue(writes, SNAPSHOT_FILE, () -> {
+                        long valid = BinarySnapshot.validLength(file);
+                        AtomicFile.append(file, loans, valid);
+                        snapshotLength = valid + loans.length;
+                    });
+                }
+            }
+            return roll ? 0 : pending.size();
+        }
+        
+        if (usersDirty) {
+            queue(writes, "users.txt", () -> AtomicFile.replace(Paths.get("users.txt"), usersFile(userList)));
+        }
+        if (booksDirty) {
+            queue(writes, "books.txt", () -> AtomicFile.replace(Paths.get("books.txt"), booksFile(bookList)));
+        }
+        if (rewrite || roll) {
+            List<Transaction> kept = roll ? Collections.emptyList() : closed;
+            queue(writes, "transactions.txt", () -> {
+                AtomicFile.replace(Paths.get("transactions.txt"), linesOf(kept));
+                historyReplaced(kept);
+            });
+        } else if (!closed.isEmpty()) {
+            queue(writes, "transactions.txt", () -> {
+                Path file = Paths.get("transactions.txt");
+                AtomicFile.append(file, linesOf(closed), CsvLoader.completeLength(file));
+                historyAppended(closed, counted);
+            });
+        }
+        if (loansDirty) {
+            byte[] content = linesOf(transactions.openTransactions());
+            queue(writes, "loans.txt", () -> AtomicFile.replace(Paths.get("loans.txt"), content));
+        }
+        if (sequenceDirty) {
+            queue(writes, "transactions.seq", transactionIds::save);
+        }
+        return roll ? 0 : pending.size();
+    }
+    
+    // data.format names the format of the last complete checkpoint; it goes last, so it is only
+    // changed once every file in the new format has been written.
+    private void queueFormat(List<FileWrite> writes) {
+        String format = binaryFormat ? "binary" : "text";
+        if (!format.equals(recordedFormat)) {
+            queue(writes, FORMAT_FILE, () -> {
+                AtomicFile.replace(Paths.get(FORMAT_FILE), (format + "\n").getBytes(StandardCharsets.UTF_8));
+                recordedFormat = format;
+            });
+        }
+    }
+    
+    private static String readFormat() {
+        try {
+            return new String(Files.readAllBytes(Paths.get(FORMAT_FILE)), StandardCharsets.UTF_8).trim().toLowerCase();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.out.println("Error reading " + FORMAT_FILE + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    private long historyBytes() {
+        File file = new File(historyBinary ? HISTORY_FILE : "transactions.txt");
+        return file.length();
+    }
+    
+    // The rolled loans are in segments now; a loan closed since the checkpoint began stays pending.
+    private void dropRolled(List<Transaction> rolled) {
+        stateLock.writeLock().lock();
+        try {
+            transactions = transactions.without(rolled);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+    
+    // The first ID and record count of the recent-history file, which a roll notes in the segment index.
+    private void historyReplaced(List<Transaction> written) {
+        historyFirstId = written.isEmpty() ? null : written.get(0).getTransactionId();
+        historyRecords = written.size();
+    }
+    
+    private void historyAppended(List<Transaction> written, boolean counted) {
+        if (counted) {
+            if (historyFirstId == null) {
+                historyFirstId = written.get(0).getTransactionId();
             }
+            historyRecords += written.size();
+        }
+    }
+    
+    private interface FileWrite {
+        void run() throws IOException;
+    }
+    
+    private static void queue(List<FileWrite> writes, String file, FileWrite write) {
+        writes.add(() -> {
+            LibraryEvents.SavePhase phase = LibraryEvents.SavePhase.start();
+            write.run();
+            phase.finish("write", file);
+        });
+    }
+    
+    private void startFlusher() {
+        if (FLUSH_INTERVAL_MILLIS <= 0 || flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    private void flush() {
+        flushRequested.set(false);
+        try {
+            if (!batching && journal.getRecordCount() > 0) {
+                saveAllData();
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Error writing checkpoint: " + e);
+        }
+    }
+    
+    // Between beginBatch() and endBatch() journal records are synced only by commitBatch(), and
+    // checkpoints wait for endBatch(), so a bulk run pays for one fsync per chunk and one checkpoint.
+    public void beginBatch() {
+        journal.holdSync();
+        batching = true;
+    }
+    
+    public void commitBatch() throws IOException {
+        journal.sync();
+    }
+    
+    public void endBatch() {
+        batching = false;
+        try {
+            journal.releaseSync();
+        } catch (IOException e) {
+            System.out.println("Error syncing journal: " + e.getMessage());
+        }
+        maybeCheckpoint();
+    }
+    
+    public void shutdown() {
+        overdue.close();
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher = null;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.out.println("Error closing journal: " + e.getMessage());
+        }
+    }
+    
+    private void saveUsers() {
+        try {
+            AtomicFile.replace(Paths.get("users.txt"), usersFile(users));
         } catch (IOException e) {
             System.out.println("Error saving users: " + e.getMessage());
         }
     }
     
     private void saveBooks() {
-        try (PrintWriter pw = new PrintWriter(new FileWriter("books.txt"))) {
-            for (Book book : books) {
-                pw.println(book.toFileString());
-            }
+        try {
+            AtomicFile.replace(Paths.get("books.txt"), booksFile(books));
         } catch (IOException e) {
             System.out.println("Error saving books: " + e.getMessage());
         }
     }
     
-    private void saveTransactions() {
-        try (PrintWriter pw = new PrintWriter(new FileWriter("transactions.txt"))) {
-            for (Transaction transaction : transactions) {
-                pw.println(transaction.toFileString());
+    private static byte[] usersFile(Iterable<User> users) {
+        StringBuilder sb = new StringBuilder();
+        for (User user : users) {
+            sb.append(user.toFileString()).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] booksFile(Iterable<Book> books) {
+        StringBuilder sb = new StringBuilder();
+        for (Book book : books) {
+            sb.append(book.toFileString()).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private byte[] holdsFile() {
+        StringBuilder sb = new StringBuilder();
+        for (HoldQueues.Hold hold : holds.all()) {
+            sb.append(hold.toFileString()).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] linesOf(Collection<Transaction> records) {
+        StringBuilder sb = new StringBuilder();
+        for (Transaction transaction : records) {
+            sb.append(transaction.toFileString()).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private List<Transaction> closedTransactions() {
+        List<Transaction> closed = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            if (!transaction.isOpen()) {
+                closed.add(transaction);
             }
-        } catch (IOException e) {
-            System.out.println("Error saving transactions: " + e.getMessage());
+        }
+        return closed;
+    }
+    
+    // Once the journal is long enough, checkpoint now, or hand it to the flusher when one is running.
+    private void maybeCheckpoint() {
+        if (batching || journal.getRecordCount() < CHECKPOINT_EVERY) {
+            return;
+        }
+        if (flusher == null) {
+            saveAllData();
+        } else if (flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flush);
         }
     }
     
@@ -164,15 +807,115 @@ public class LibrarySystem {
         return false;
     }
     
-    private User authenticateUser(String username, String password) {
-        for (User user : users) {
-            if (user.getName().equals(username) && user.getPassword().equals(password)) {
+    // Looks the name up in the name index and checks each user with that name. Hashing happens
+    // outside the state lock, since it is deliberately slow.
+    public User authenticateUser(String username, String password) {
+        long started = System.nanoTime();
+        try {
+            return authenticate(username, password);
+        } finally {
+            loginTimer.record(started);
+        }
+    }
+    
+    private User authenticate(String username, String password) {
+        List<User> candidates;
+        stateLock.readLock().lock();
+        try {
+            candidates = new ArrayList<>(usersByName.getOrDefault(username, Collections.emptyList()));
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        if (candidates.isEmpty()) {
+            PasswordHasher.verifyDecoy(password);
+            return null;
+        }
+        for (User user : candidates) {
+            String stored = user.getPassword();
+            if (PasswordHasher.verify(password, stored)) {
+                if (PasswordHasher.needsRehash(stored)) {
+                    rehashPassword(user, stored, PasswordHasher.hash(password));
+                }
                 return user;
             }
         }
         return null;
     }
     
+    // Issues a token that authenticateSession() accepts in place of the password.
+    public String openSession(User user) {
+        return sessions.issue(user);
+    }
+    
+    public User authenticateSession(String token) {
+        SessionCache.Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        User user = findUserById(session.userId);
+        if (user == null || !user.getPassword().equals(session.credential)) {
+            sessions.revoke(token);
+            return null;
+        }
+        return user;
+    }
+    
+    public void closeSession(String token) {
+        sessions.revoke(token);
+    }
+    
+    // Plaintext from an older users.txt, or a hash at an old cost, is replaced after a good login.
+    private void rehashPassword(User user, String expected, String hashed) {
+        stateLock.writeLock().lock();
+        try {
+            if (users.get(user.getId()) != user || !user.getPassword().equals(expected)) {
+                return;
+            }
+            log("UPDATE_USER", user.getId(), user.getName(), hashed, user.getRole());
+            applyUpdateUser(user.getId(), user.getName(), hashed, user.getRole());
+        } catch (InvalidOperationException e) {
+            // The login stands; the password is rehashed at a later one.
+            System.out.println(e.getMessage());
+            return;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        maybeCheckpoint();
+    }
+    
+    // Hashes every plaintext password left in the user file and checkpoints the result.
+    public void migratePasswords() {
+        loadData();
+        List<User> plain = new ArrayList<>();
+        for (User user : getUsers()) {
+            if (!PasswordHasher.isHashed(user.getPassword())) {
+                plain.add(user);
+            }
+        }
+        Map<User, String[]> hashed = new ConcurrentHashMap<>();
+        plain.parallelStream().forEach(user -> {
+            String stored = user.getPassword();
+            hashed.put(user, new String[] { stored, PasswordHasher.hash(stored) });
+        });
+        int migrated = 0;
+        stateLock.writeLock().lock();
+        try {
+            for (Map.Entry<User, String[]> entry : hashed.entrySet()) {
+                User user = entry.getKey();
+                if (user.getPassword().equals(entry.getValue()[0])) {
+                    user.setPassword(entry.getValue()[1]);
+                    usersChanged = true;
+                    migrated++;
+                }
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        saveAllData();
+        shutdown();
+        System.out.println("Hashed " + migrated + " plaintext passwords.");
+    }
+    
     public void displayMenu() {
         while (true) {
             System.out.println("\n========================================");
@@ -181,11 +924,13 @@ public class LibrarySystem {
             System.out.println("1. View All Books");
             System.out.println("2. Borrow Book");
             System.out.println("3. Return Book");
+            System.out.println("4. My Holds");
             
             if (loggedInUser.getRole().equals("admin")) {
-                System.out.println("4. Manage Users");
-                System.out.println("5. Manage Catalogue");
-                System.out.println("6. View Transactions");
+                System.out.println("5. Manage Users");
+                System.out.println("6. Manage Catalogue");
+                System.out.println("7. View Transactions");
+                System.out.println("8. View Metrics");
             }
             
             System.out.println("0. Exit");
@@ -198,30 +943,39 @@ public class LibrarySystem {
                     case 1: viewAllBooks(); break;
                     case 2: borrowBook(); break;
                     case 3: returnBook(); break;
-                    case 4:
+                    case 4: manageHolds(); break;
+                    case 5:
                         if (loggedInUser.getRole().equals("admin")) {
                             manageUsers();
                         } else {
                             System.out.println("Invalid choice.");
                         }
                         break;
-                    case 5:
+                    case 6:
                         if (loggedInUser.getRole().equals("admin")) {
                             manageCatalogue();
                         } else {
                             System.out.println("Invalid choice.");
                         }
                         break;
-                    case 6:
+                    case 7:
                         if (loggedInUser.getRole().equals("admin")) {
                             manageTransactions();
                         } else {
                             System.out.println("Invalid choice.");
                         }
                         break;
+                    case 8:
+                        if (loggedInUser.getRole().equals("admin")) {
+                            manageMetrics();
+                        } else {
+                            System.out.println("Invalid choice.");
+                        }
+                        break;
                     case 0:
                         System.out.println("\nSaving data and exiting...");
                         saveAllData();
+                        shutdown();
                         System.out.println("Thank you!");
                         return;
                     default:
@@ -252,7 +1006,7 @@ public class LibrarySystem {
         System.out.println("           BORROW BOOK");
         System.out.println("========================================");
         
-        if (loggedInUser.getBorrowedBooks().size() >= 3) {
+        if (loggedInUser.getBorrowedCount() >= MAX_BORROWED_BOOKS) {
             System.out.println("Maximum borrowing limit of 3 books reached.");
             return;
         }
@@ -260,30 +1014,88 @@ public class LibrarySystem {
         System.out.print("Enter Book ID: ");
         String bookId = scanner.nextLine();
         
+        try {
+            Transaction transaction = borrowBook(loggedInUser, bookId);
+            
+            System.out.println("\nBook borrowed successfully!");
+            System.out.println("Transaction ID: " + transaction.getTransactionId());
+            System.out.println("Due date: " + getDueDate(transaction));
+            findBookById(bookId).displayBookDetails();
+        } catch (BookUnavailableException e) {
+            System.out.println("Error: " + e.getMessage());
+            System.out.print("Place a hold on this book? (y/n): ");
+            if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                placeHold(bookId);
+            }
+        } catch (InvalidOperationException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+        System.out.println("\n========================================");
+    }
+    
+    public Transaction borrowBook(User user, String bookId) throws InvalidOperationException, BookUnavailableException {
+        long started = System.nanoTime();
+        LibraryEvents.Lending event = LibraryEvents.Lending.start();
+        Transaction transaction = null;
+        try {
+            transaction = lend(user, bookId);
+            return transaction;
+        } finally {
+            borrowTimer.record(started);
+            event.finish("borrow", user, bookId, transaction != null, transaction);
+        }
+    }
+    
+    private Transaction lend(User user, String bookId) throws InvalidOperationException, BookUnavailableException {
+        if (user.getBorrowedCount() >= MAX_BORROWED_BOOKS) {
+            throw new InvalidOperationException("Maximum borrowing limit of 3 books reached.");
+        }
+        Transaction transaction;
+        ReentrantLock bookLock = bookLocks.lockFor(bookId);
+        stateLock.readLock().lock();
+        bookLock.lock();
         try {
             Book book = findBookById(bookId);
             if (book == null) {
-                throw new NullPointerException("Book not found.");
+                throw new InvalidOperationException("Book not found.");
             }
-            if (!book.isAvailable()) {
+            String currentDate = LocalDate.now().toString();
+            expireHold(bookId, currentDate);
+            // A copy set aside for this user's hold is theirs to pick up; for anyone else it is unavailable.
+            HoldQueues.Hold ready = holds.readyHold(bookId);
+            boolean pickup = ready != null && ready.getUserId().equals(user.getId());
+            if (!pickup && !book.isAvailable()) {
+                throw new BookUnavailableException("Book currently unavailable.");
+            }
+            if (user.hasBorrowed(bookId)) {
+                throw new InvalidOperationException("You already have this book.");
+            }
+            if (!user.tryAddBorrowedBook(bookId, MAX_BORROWED_BOOKS)) {
+                throw new InvalidOperationException("Maximum borrowing limit of 3 books reached.");
+            }
+            if (!pickup && !book.tryCheckOut()) {
+                user.removeBorrowedBook(bookId);
                 throw new BookUnavailableException("Book currently unavailable.");
             }
             
             String transactionId = generateTransactionId();
-            String currentDate = LocalDate.now().toString();
-            Transaction transaction = new Transaction(transactionId, loggedInUser.getId(), bookId, currentDate, "null");
-            transactions.add(transaction);
-            
-            book.setAvailable(false);
-            loggedInUser.addBorrowedBook(bookId);
-            
-            System.out.println("\nBook borrowed successfully!");
-            System.out.println("Transaction ID: " + transactionId);
-            book.displayBookDetails();
-        } catch (NullPointerException | BookUnavailableException e) {
-            System.out.println("Error: " + e.getMessage());
+            String dueDate = dueDate(user.getId(), currentDate).toString();
+            try {
+                log("BORROW", transactionId, user.getId(), bookId, currentDate, dueDate);
+            } catch (InvalidOperationException e) {
+                user.removeBorrowedBook(bookId);
+                if (!pickup) {
+                    book.setAvailable(true);
+                }
+                throw e;
+            }
+            transaction = applyBorrow(transactionId, user.getId(), bookId, currentDate, dueDate);
+        } finally {
+            bookLock.unlock();
+            stateLock.readLock().unlock();
         }
-        System.out.println("\n========================================");
+        maybeCheckpoint();
+        return transaction;
     }
     
     private void returnBook() {
@@ -291,7 +1103,7 @@ public class LibrarySystem {
         System.out.println("           RETURN BOOK");
         System.out.println("========================================");
         
-        if (loggedInUser.getBorrowedBooks().isEmpty()) {
+        if (loggedInUser.getBorrowedCount() == 0) {
             System.out.println("You have no books to return.");
             return;
         }
@@ -308,29 +1120,208 @@ public class LibrarySystem {
         String bookId = scanner.nextLine();
         
         try {
-            if (!loggedInUser.getBorrowedBooks().contains(bookId)) {
-                throw new NullPointerException("You have not borrowed this book.");
-            }
+            Book book = returnBook(loggedInUser, bookId);
             
-            Book book = findBookById(bookId);
+            System.out.println("\nBook returned successfully!");
+            book.displayBookDetails();
+        } catch (InvalidOperationException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+        System.out.println("\n========================================");
+    }
+    
+    public Book returnBook(User user, String bookId) throws InvalidOperationException {
+        long started = System.nanoTime();
+        LibraryEvents.Lending event = LibraryEvents.Lending.start();
+        Book book = null;
+        try {
+            book = takeBack(user, bookId);
+            return book;
+        } finally {
+            returnTimer.record(started);
+            event.finish("return", user, bookId, book != null, null);
+        }
+    }
+    
+    private Book takeBack(User user, String bookId) throws InvalidOperationException {
+        Book book;
+        ReentrantLock bookLock = bookLocks.lockFor(bookId);
+        stateLock.readLock().lock();
+        bookLock.lock();
+        try {
+            if (!user.hasBorrowed(bookId)) {
+                throw new InvalidOperationException("You have not borrowed this book.");
+            }
+            book = findBookById(bookId);
             if (book == null) {
-                throw new NullPointerException("Book not found.");
+                throw new InvalidOperationException("Book not found.");
             }
             
-            Transaction transaction = findActiveTransaction(loggedInUser.getId(), bookId);
-            if (transaction != null) {
-                transaction.setDateReturned(LocalDate.now().toString());
+            String currentDate = LocalDate.now().toString();
+            log("RETURN", user.getId(), bookId, currentDate);
+            applyReturn(user.getId(), bookId, currentDate);
+        } finally {
+            bookLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        maybeCheckpoint();
+        return book;
+    }
+    
+    private void manageHolds() {
+        while (true) {
+            System.out.println("\n========================================");
+            System.out.println("             MY HOLDS");
+            System.out.println("========================================");
+            List<HoldQueues.Hold> mine = getHolds(loggedInUser);
+            for (HoldQueues.Hold hold : mine) {
+                System.out.println(hold.isReady() ? hold.toString()
+                        : hold + " | Position " + getHoldPosition(hold) + " of " + holds.waitingFor(hold.getBookId()));
             }
+            if (mine.isEmpty()) {
+                System.out.println("You have no holds.");
+            }
+            System.out.println("----------------------------------------");
+            System.out.println("1. Place Hold");
+            System.out.println("2. Cancel Hold");
+            System.out.println("0. Back");
+            System.out.println("========================================");
+            System.out.print("Enter choice: ");
             
-            book.setAvailable(true);
-            loggedInUser.removeBorrowedBook(bookId);
-            
-            System.out.println("\nBook returned successfully!");
-            book.displayBookDetails();
-        } catch (NullPointerException e) {
+            try {
+                int choice = Integer.parseInt(scanner.nextLine());
+                switch (choice) {
+                    case 1:
+                        System.out.print("Enter Book ID: ");
+                        placeHold(scanner.nextLine());
+                        break;
+                    case 2:
+                        System.out.print("Enter Book ID: ");
+                        try {
+                            cancelHold(loggedInUser, scanner.nextLine());
+                            System.out.println("Hold cancelled.");
+                        } catch (InvalidOperationException e) {
+                            System.out.println("Error: " + e.getMessage());
+                        }
+                        break;
+                    case 0: return;
+                    default: System.out.println("Invalid choice.");
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input.");
+            }
+        }
+    }
+    
+    private void placeHold(String bookId) {
+        try {
+            int position = placeHold(loggedInUser, bookId);
+            System.out.println("Hold placed. You are number " + position + " in line.");
+        } catch (InvalidOperationException e) {
             System.out.println("Error: " + e.getMessage());
         }
-        System.out.println("\n========================================");
+    }
+    
+    // Returns the new hold's place in the book's queue.
+    public int placeHold(User user, String bookId) throws InvalidOperationException {
+        int position;
+        ReentrantLock bookLock = bookLocks.lockFor(bookId);
+        stateLock.readLock().lock();
+        bookLock.lock();
+        try {
+            Book book = findBookById(bookId);
+            if (book == null) {
+                throw new InvalidOperationException("Book not found.");
+            }
+            String currentDate = LocalDate.now().toString();
+            expireHold(bookId, currentDate);
+            if (user.hasBorrowed(bookId)) {
+                throw new InvalidOperationException("You already have this book.");
+            }
+            if (book.isAvailable()) {
+                throw new InvalidOperationException("Book is available; borrow it instead.");
+            }
+            List<HoldQueues.Hold> mine = holds.forUser(user.getId());
+            for (HoldQueues.Hold hold : mine) {
+                if (hold.getBookId().equals(bookId)) {
+                    throw new InvalidOperationException("You already have a hold on this book.");
+                }
+            }
+            if (mine.size() >= MAX_HOLDS) {
+                throw new InvalidOperationException("Maximum of " + MAX_HOLDS + " holds reached.");
+            }
+            log("HOLD", user.getId(), bookId, currentDate);
+            applyHold(user.getId(), bookId, currentDate);
+            position = holds.waitingFor(bookId);
+        } finally {
+            bookLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        maybeCheckpoint();
+        return position;
+    }
+    
+    public void cancelHold(User user, String bookId) throws InvalidOperationException {
+        ReentrantLock bookLock = bookLocks.lockFor(bookId);
+        stateLock.readLock().lock();
+        bookLock.lock();
+        try {
+            boolean held = false;
+            for (HoldQueues.Hold hold : holds.forUser(user.getId())) {
+                held |= hold.getBookId().equals(bookId);
+            }
+            if (!held) {
+                throw new InvalidOperationException("You have no hold on this book.");
+            }
+            String currentDate = LocalDate.now().toString();
+            log("CANCEL_HOLD", user.getId(), bookId, currentDate);
+            applyCancelHold(user.getId(), bookId, currentDate);
+        } finally {
+            bookLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        maybeCheckpoint();
+    }
+    
+    // Called with the book's lock held. A copy not picked up by its last day moves down the queue.
+    private void expireHold(String bookId, String today) throws InvalidOperationException {
+        HoldQueues.Hold ready = holds.readyHold(bookId);
+        if (ready != null && ready.getReadyUntil().compareTo(today) < 0) {
+            log("EXPIRE_HOLD", bookId, today);
+            applyExpireHold(bookId, today);
+        }
+    }
+    
+    // Unclaimed copies are passed on at startup, for those left while the library was closed, and
+    // then by the overdue scheduler at each midnight, so a book nobody touches does not stay set aside.
+    private void expireHolds() {
+        String today = LocalDate.now().toString();
+        for (HoldQueues.Hold hold : holds.readyHolds()) {
+            ReentrantLock bookLock = bookLocks.lockFor(hold.getBookId());
+            stateLock.readLock().lock();
+            bookLock.lock();
+            try {
+                expireHold(hold.getBookId(), today);
+            } catch (InvalidOperationException e) {
+                System.out.println(e.getMessage());
+            } finally {
+                bookLock.unlock();
+                stateLock.readLock().unlock();
+            }
+        }
+        maybeCheckpoint();
+    }
+    
+    public List<HoldQueues.Hold> getHolds(User user) {
+        return holds.forUser(user.getId());
+    }
+    
+    public int getHoldPosition(HoldQueues.Hold hold) {
+        return holds.position(hold);
+    }
+    
+    public HoldQueues.Hold getReadyHold(String bookId) {
+        return holds.readyHold(bookId);
     }
     
     private void manageUsers() {
@@ -379,14 +1370,36 @@ public class LibrarySystem {
         System.out.print("Enter Role (user/admin): ");
         String role = scanner.nextLine();
         
-        users.add(new User(id, name, password, role));
-        System.out.println("User added successfully!");
+        try {
+            addUser(id, name, password, role);
+            System.out.println("User added successfully!");
+        } catch (InvalidOperationException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
         
         Person p = new User(id, name, password, role);
         System.out.print("Polymorphic display: ");
         p.displayInfo();
     }
     
+    public User addUser(String id, String name, String password, String role) throws InvalidOperationException {
+        User user;
+        String hashed = PasswordHasher.hash(password);
+        stateLock.writeLock().lock();
+        try {
+            if (findUserById(id) != null) {
+                throw new InvalidOperationException("User ID already exists!");
+            }
+            log("ADD_USER", id, name, hashed, role);
+            user = applyAddUser(id, name, hashed, role);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        maybeCheckpoint();
+        return user;
+    }
+    
     private void updateUser() {
         System.out.println("\n--- Update User ---");
         System.out.print("Enter User ID: ");
@@ -403,17 +1416,40 @@ public class LibrarySystem {
         
         System.out.print("Enter new Name (Enter to skip): ");
         String name = scanner.nextLine();
-        if (!name.isEmpty()) user.setName(name);
         
         System.out.print("Enter new Password (Enter to skip): ");
         String password = scanner.nextLine();
-        if (!password.isEmpty()) user.setPassword(password);
         
         System.out.print("Enter new Role (Enter to skip): ");
         String role = scanner.nextLine();
-        if (!role.isEmpty()) user.setRole(role);
         
-        System.out.println("User updated!");
+        try {
+            updateUser(id, name, password, role);
+            System.out.println("User updated!");
+        } catch (InvalidOperationException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+    
+    public User updateUser(String id, String name, String password, String role) throws InvalidOperationException {
+        User user;
+        String hashed = password.isEmpty() ? null : PasswordHasher.hash(password);
+        stateLock.writeLock().lock();
+        try {
+            user = findUserById(id);
+            if (user == null) {
+                throw new InvalidOperationException("User not found!");
+            }
+            String newName = name.isEmpty() ? user.getName() : name;
+            String newPassword = hashed == null ? user.getPassword() : hashed;
+            String newRole = role.isEmpty() ? user.getRole() : role;
+            log("UPDATE_USER", id, newName, newPassword, newRole);
+            applyUpdateUser(id, newName, newPassword, newRole);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        maybeCheckpoint();
+        return user;
     }
     
     private void deleteUser() {
@@ -421,19 +1457,33 @@ public class LibrarySystem {
         System.out.print("Enter User ID: ");
         String id = scanner.nextLine();
         
-        User user = findUserById(id);
-        if (user == null) {
-            System.out.println("User not found!");
-            return;
+        try {
+            deleteUser(loggedInUser, id);
+            System.out.println("User deleted!");
+        } catch (InvalidOperationException e) {
+            System.out.println(e.getMessage());
         }
-        
-        if (user.getId().equals(loggedInUser.getId())) {
-            System.out.println("Cannot delete your own account!");
-            return;
+    }
+    
+    public void deleteUser(User actor, String id) throws InvalidOperationException {
+        stateLock.writeLock().lock();
+        try {
+            User user = findUserById(id);
+            if (user == null) {
+                throw new InvalidOperationException("User not found!");
+            }
+            if (actor != null && user.getId().equals(actor.getId())) {
+                throw new InvalidOperationException("Cannot delete your own account!");
+            }
+            if (!holds.forUser(id).isEmpty()) {
+                throw new InvalidOperationException("Cannot delete a user with holds!");
+            }
+            log("DELETE_USER", id);
+            applyDeleteUser(id);
+        } finally {
+            stateLock.writeLock().unlock();
         }
-        
-        users.remove(user);
-        System.out.println("User deleted!");
+        maybeCheckpoint();
     }
     
     private void displayAllUsers() {
@@ -456,6 +1506,7 @@ public class LibrarySystem {
             System.out.println("3. Delete Book");
             System.out.println("4. Display All Books");
             System.out.println("5. Search Books");
+            System.out.println("6. Import Books from CSV");
             System.out.println("0. Back");
             System.out.println("========================================");
             System.out.print("Enter choice: ");
@@ -468,6 +1519,7 @@ public class LibrarySystem {
                     case 3: deleteBook(); break;
                     case 4: viewAllBooks(); break;
                     case 5: searchBooks(); break;
+                    case 6: importBooks(); break;
                     case 0: return;
                     default: System.out.println("Invalid choice.");
                 }
@@ -492,8 +1544,63 @@ public class LibrarySystem {
         System.out.print("Enter Author: ");
         String author = scanner.nextLine();
         
-        books.add(new Book(id, title, author, true));
-        System.out.println("Book added!");
+        try {
+            addBook(id, title, author);
+            System.out.println("Book added!");
+        } catch (InvalidOperationException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+    
+    public Book addBook(String id, String title, String author) throws InvalidOperationException {
+        Book book;
+        stateLock.writeLock().lock();
+        try {
+            if (findBookById(id) != null) {
+                throw new InvalidOperationException("Book ID already exists!");
+            }
+            log("ADD_BOOK", id, title, author, "true");
+            book = applyAddBook(id, title, author, true);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        maybeCheckpoint();
+        return book;
+    }
+    
+    // Adds a batch of books (ID, title, author) under one write lock. Rows whose ID is taken by the
+    // time the lock is held are returned instead of added. A journal failure stops the batch; the rows
+    // before it stay added.
+    public List<String[]> importBooks(List<String[]> rows) throws InvalidOperationException {
+        List<String[]> duplicates = new ArrayList<>();
+        stateLock.writeLock().lock();
+        try {
+            for (String[] row : rows) {
+                if (books.get(row[0]) != null) {
+                    duplicates.add(row);
+                    continue;
+                }
+                log("ADD_BOOK", row[0], row[1], row[2], "true");
+                applyAddBook(row[0], row[1], row[2], true);
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        maybeCheckpoint();
+        return duplicates;
+    }
+    
+    private void importBooks() {
+        System.out.println("\n--- Import Books ---");
+        System.out.print("Enter CSV file (ID,Title,Author per line): ");
+        String file = scanner.nextLine().trim();
+        System.out.print("Enter reject file (Enter for " + file + ".rejects): ");
+        String rejects = scanner.nextLine().trim();
+        try {
+            new BookImporter(this, System.out).run(Paths.get(file), Paths.get(rejects.isEmpty() ? file + ".rejects" : rejects));
+        } catch (IOException e) {
+            System.out.println("Error importing books: " + e.getMessage());
+        }
     }
     
     private void updateBook() {
@@ -512,13 +1619,35 @@ public class LibrarySystem {
         
         System.out.print("Enter new Title (Enter to skip): ");
         String title = scanner.nextLine();
-        if (!title.isEmpty()) book.setTitle(title);
         
         System.out.print("Enter new Author (Enter to skip): ");
         String author = scanner.nextLine();
-        if (!author.isEmpty()) book.setAuthor(author);
         
-        System.out.println("Book updated!");
+        try {
+            updateBook(id, title, author);
+            System.out.println("Book updated!");
+        } catch (InvalidOperationException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+    
+    public Book updateBook(String id, String title, String author) throws InvalidOperationException {
+        Book book;
+        stateLock.writeLock().lock();
+        try {
+            book = findBookById(id);
+            if (book == null) {
+                throw new InvalidOperationException("Book not found!");
+            }
+            String newTitle = title.isEmpty() ? book.getTitle() : title;
+            String newAuthor = author.isEmpty() ? book.getAuthor() : author;
+            log("UPDATE_BOOK", id, newTitle, newAuthor);
+            applyUpdateBook(id, newTitle, newAuthor);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        maybeCheckpoint();
+        return book;
     }
     
     private void deleteBook() {
@@ -526,50 +1655,62 @@ public class LibrarySystem {
         System.out.print("Enter Book ID: ");
         String id = scanner.nextLine();
         
-        Book book = findBookById(id);
-        if (book == null) {
-            System.out.println("Book not found!");
-            return;
+        try {
+            deleteBook(id);
+            System.out.println("Book deleted!");
+        } catch (InvalidOperationException e) {
+            System.out.println(e.getMessage());
         }
-        
-        if (!book.isAvailable()) {
-            System.out.println("Cannot delete a borrowed book!");
-            return;
+    }
+    
+    public void deleteBook(String id) throws InvalidOperationException {
+        stateLock.writeLock().lock();
+        try {
+            Book book = findBookById(id);
+            if (book == null) {
+                throw new InvalidOperationException("Book not found!");
+            }
+            if (!book.isAvailable()) {
+                throw new InvalidOperationException("Cannot delete a borrowed book!");
+            }
+            log("DELETE_BOOK", id);
+            applyDeleteBook(id);
+        } finally {
+            stateLock.writeLock().unlock();
         }
-        
-        books.remove(book);
-        System.out.println("Book deleted!");
+        maybeCheckpoint();
     }
     
     private void searchBooks() {
         System.out.println("\n--- Search Books ---");
         System.out.println("1. Search by Title");
         System.out.println("2. Search by Author");
+        System.out.println("3. Search by Title and Author");
+        System.out.println("4. Autocomplete Title or Author");
         System.out.print("Enter choice: ");
         
         try {
             int choice = Integer.parseInt(scanner.nextLine());
+            if (choice == 4) {
+                autocompleteBooks();
+                return;
+            }
             System.out.print("Enter search term: ");
-            String searchTerm = scanner.nextLine().toLowerCase();
+            String searchTerm = scanner.nextLine();
             
             System.out.println("\n--- Search Results ---");
-            boolean found = false;
+            List<Book> found = Collections.emptyList();
+            switch (choice) {
+                case 1: found = searchBooks(searchTerm, SearchIndex.Field.TITLE); break;
+                case 2: found = searchBooks(searchTerm, SearchIndex.Field.AUTHOR); break;
+                case 3: found = searchBooks(searchTerm, SearchIndex.Field.ANY); break;
+            }
             
-            for (Book book : books) {
-                boolean match = false;
-                if (choice == 1 && book.getTitle().toLowerCase().contains(searchTerm)) {
-                    match = true;
-                } else if (choice == 2 && book.getAuthor().toLowerCase().contains(searchTerm)) {
-                    match = true;
-                }
-                
-                if (match) {
-                    book.displayBookDetails();
-                    found = true;
-                }
+            for (Book book : found) {
+                book.displayBookDetails();
             }
             
-            if (!found) {
+            if (found.isEmpty()) {
                 System.out.println("No books found.");
             }
         } catch (NumberFormatException e) {
@@ -577,6 +1718,77 @@ public class LibrarySystem {
         }
     }
     
+    private void autocompleteBooks() {
+        System.out.print("Start typing a title or author: ");
+        String prefix = scanner.nextLine();
+        
+        System.out.println("\n--- Suggestions ---");
+        List<String> suggestions = autocomplete(prefix, SearchIndex.Field.ANY);
+        for (String suggestion : suggestions) {
+            System.out.println(suggestion);
+        }
+        if (suggestions.isEmpty()) {
+            System.out.println("No suggestions.");
+        }
+    }
+    
+    public List<String> autocomplete(String prefix, SearchIndex.Field field) {
+        long started = System.nanoTime();
+        try {
+            return complete(prefix, field);
+        } finally {
+            autocompleteTimer.record(started);
+        }
+    }
+    
+    private List<String> complete(String prefix, SearchIndex.Field field) {
+        stateLock.readLock().lock();
+        try {
+            return searchIndex.complete(prefix, field, AUTOCOMPLETE_LIMIT);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+    
+    public List<Book> searchBooks(String searchTerm, SearchIndex.Field field) {
+        long started = System.nanoTime();
+        LibraryEvents.Search event = LibraryEvents.Search.start();
+        List<Book> found = null;
+        try {
+            found = search(searchTerm, field);
+            return found;
+        } finally {
+            searchTimer.record(started);
+            event.finish(searchTerm, field, found == null ? 0 : found.size());
+        }
+    }
+    
+    // Cached results are filled in under the read lock, so no catalogue change can fall between
+    // running the query and storing its result.
+    private List<Book> search(String searchTerm, SearchIndex.Field field) {
+        List<String> words = SearchIndex.tokenize(searchTerm);
+        stateLock.readLock().lock();
+        try {
+            int total = searchIndex.size();
+            List<String> bookIds = words.isEmpty() ? null : searchCache.get(field, words, total);
+            if (bookIds == null) {
+                SearchIndex.Matches matches = searchIndex.match(searchTerm, field);
+                bookIds = matches.rank(total);
+                searchCache.put(field, words, matches, bookIds, total);
+            }
+            List<Book> found = new ArrayList<>(bookIds.size());
+            for (String bookId : bookIds) {
+                Book book = books.get(bookId);
+                if (book != null) {
+                    found.add(book);
+                }
+            }
+            return found;
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+    
     private void manageTransactions() {
         while (true) {
             System.out.println("\n========================================");
@@ -585,6 +1797,8 @@ public class LibrarySystem {
             System.out.println("1. View All Transactions");
             System.out.println("2. View Transactions by User");
             System.out.println("3. View Transactions by Book");
+            System.out.println("4. Overdue Report");
+            System.out.println("5. Transactions by Date Range");
             System.out.println("0. Back");
             System.out.println("========================================");
             System.out.print("Enter choice: ");
@@ -595,6 +1809,46 @@ public class LibrarySystem {
                     case 1: viewAllTransactions(); break;
                     case 2: viewTransactionsByUser(); break;
                     case 3: viewTransactionsByBook(); break;
+                    case 4: viewOverdueLoans(); break;
+                    case 5: viewTransactionsByDate(); break;
+                    case 0: return;
+                    default: System.out.println("Invalid choice.");
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input.");
+            }
+        }
+    }
+    
+    private void manageMetrics() {
+        while (true) {
+            System.out.println("\n========================================");
+            System.out.println("            METRICS");
+            System.out.println("========================================");
+            System.out.println("1. View Metrics");
+            System.out.println("2. Export Metrics Snapshot");
+            System.out.println("0. Back");
+            System.out.println("========================================");
+            System.out.print("Enter choice: ");
+            
+            try {
+                int choice = Integer.parseInt(scanner.nextLine());
+                switch (choice) {
+                    case 1:
+                        System.out.println();
+                        System.out.print(metrics.snapshot());
+                        break;
+                    case 2:
+                        System.out.print("File name [metrics.txt]: ");
+                        String fileName = scanner.nextLine().trim();
+                        Path file = Paths.get(fileName.isEmpty() ? "metrics.txt" : fileName);
+                        try {
+                            exportMetrics(file);
+                            System.out.println("Metrics written to " + file + ".");
+                        } catch (IOException e) {
+                            System.out.println("Error writing metrics: " + e.getMessage());
+                        }
+                        break;
                     case 0: return;
                     default: System.out.println("Invalid choice.");
                 }
@@ -604,32 +1858,91 @@ public class LibrarySystem {
         }
     }
     
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    public void exportMetrics(Path file) throws IOException {
+        AtomicFile.replace(file, metrics.snapshot().getBytes(StandardCharsets.UTF_8));
+    }
+    
     private void viewAllTransactions() {
         System.out.println("\n========================================");
         System.out.println("        ALL TRANSACTIONS");
         System.out.println("========================================");
-        if (transactions.isEmpty()) {
+        boolean found = false;
+        for (Transaction transaction : getTransactions()) {
+            transaction.displayTransaction();
+            found = true;
+        }
+        if (!found) {
             System.out.println("No transactions found.");
+        }
+        System.out.println("========================================");
+    }
+    
+    private void viewOverdueLoans() {
+        System.out.println("\n========================================");
+        System.out.println("          OVERDUE LOANS");
+        System.out.println("========================================");
+        LocalDate today = LocalDate.now();
+        List<OverdueScheduler.Loan> loans = getOverdueLoans();
+        for (OverdueScheduler.Loan loan : loans) {
+            System.out.println(loan + " | " + loan.daysOverdue(today) + " days overdue");
+        }
+        if (loans.isEmpty()) {
+            System.out.println("No overdue loans.");
         } else {
-            for (Transaction transaction : transactions) {
+            System.out.println(loans.size() + " of " + overdue.openCount() + " open loans are overdue.");
+        }
+        System.out.println("========================================");
+    }
+    
+    private void viewTransactionsByDate() {
+        System.out.println("\n1. Loans Borrowed Between Two Dates");
+        System.out.println("2. Loans Returned Between Two Dates");
+        System.out.print("Enter choice: ");
+        String choice = scanner.nextLine().trim();
+        if (!choice.equals("1") && !choice.equals("2")) {
+            System.out.println("Invalid choice.");
+            return;
+        }
+        boolean returned = choice.equals("2");
+        LocalDate from;
+        LocalDate to;
+        try {
+            System.out.print("From (yyyy-MM-dd, blank for a week ago): ");
+            String text = scanner.nextLine().trim();
+            from = text.isEmpty() ? LocalDate.now().minusDays(7) : LocalDate.parse(text);
+            System.out.print("To (yyyy-MM-dd, blank for today): ");
+            text = scanner.nextLine().trim();
+            to = text.isEmpty() ? LocalDate.now() : LocalDate.parse(text);
+        } catch (DateTimeException e) {
+            System.out.println("Invalid date: " + e.getMessage());
+            return;
+        }
+        System.out.println("\n--- Loans " + (returned ? "Returned" : "Borrowed") + " from " + from + " to " + to + " ---");
+        long count = 0;
+        try {
+            for (Transaction transaction : returned ? getTransactionsReturnedBetween(from, to) : getTransactionsBorrowedBetween(from, to)) {
                 transaction.displayTransaction();
+                count++;
             }
+        } catch (UncheckedIOException e) {
+            System.out.println("Error reading transaction history: " + e.getCause().getMessage());
         }
-        System.out.println("========================================");
+        System.out.println(count == 0 ? "No transactions found." : count + " transactions.");
     }
     
     private void viewTransactionsByUser() {
         System.out.print("\nEnter User ID: ");
         String userId = scanner.nextLine();
         System.out.println("\n--- Transactions for User " + userId + " ---");
-        boolean found = false;
-        for (Transaction transaction : transactions) {
-            if (transaction.getUserId().equals(userId)) {
-                transaction.displayTransaction();
-                found = true;
-            }
+        List<Transaction> found = getTransactionsByUser(userId);
+        for (Transaction transaction : found) {
+            transaction.displayTransaction();
         }
-        if (!found) {
+        if (found.isEmpty()) {
             System.out.println("No transactions found.");
         }
     }
@@ -638,59 +1951,344 @@ public class LibrarySystem {
         System.out.print("\nEnter Book ID: ");
         String bookId = scanner.nextLine();
         System.out.println("\n--- Transactions for Book " + bookId + " ---");
-        boolean found = false;
-        for (Transaction transaction : transactions) {
-            if (transaction.getBookId().equals(bookId)) {
-                transaction.displayTransaction();
-                found = true;
-            }
+        List<Transaction> found = getTransactionsByBook(bookId);
+        for (Transaction transaction : found) {
+            transaction.displayTransaction();
         }
-        if (!found) {
+        if (found.isEmpty()) {
             System.out.println("No transactions found.");
         }
     }
     
-    private User findUserById(String id) {
-        for (User user : users) {
-            if (user.getId().equals(id)) {
-                return user;
+    // Journal records are written before the change is applied, and replayed through the same apply methods.
+    // Write-ahead: callers log before applying, so a record that cannot be written aborts the change.
+    private void log(String... record) throws InvalidOperationException {
+        try {
+            journal.append(record);
+        } catch (IOException e) {
+            throw new InvalidOperationException("Error writing journal: " + e.getMessage());
+        }
+    }
+    
+    private void applyRecord(String[] record) {
+        switch (record[0]) {
+            case "BORROW":
+                // Records written before due dates were logged have five fields.
+                if (record.length == 6) applyBorrow(record[1], record[2], record[3], record[4], record[5]);
+                else if (record.length == 5) applyBorrow(record[1], record[2], record[3], record[4], dueDate(record[2], record[4]).toString());
+                break;
+            case "RETURN":
+                if (record.length == 4) applyReturn(record[1], record[2], record[3]);
+                break;
+            case "ADD_BOOK":
+                if (record.length == 5) applyAddBook(record[1], record[2], record[3], Boolean.parseBoolean(record[4]));
+                break;
+            case "UPDATE_BOOK":
+                if (record.length == 4) applyUpdateBook(record[1], record[2], record[3]);
+                break;
+            case "HOLD":
+                if (record.length == 4) applyHold(record[1], record[2], record[3]);
+                break;
+            case "CANCEL_HOLD":
+                if (record.length == 4) applyCancelHold(record[1], record[2], record[3]);
+                break;
+            case "EXPIRE_HOLD":
+                if (record.length == 3) applyExpireHold(record[1], record[2]);
+                break;
+            case "DELETE_BOOK":
+                if (record.length == 2) applyDeleteBook(record[1]);
+                break;
+            case "ADD_USER":
+                if (record.length == 5) applyAddUser(record[1], record[2], record[3], record[4]);
+                break;
+            case "UPDATE_USER":
+                if (record.length == 5) applyUpdateUser(record[1], record[2], record[3], record[4]);
+                break;
+            case "DELETE_USER":
+                if (record.length == 2) applyDeleteUser(record[1]);
+                break;
+            default:
+                System.out.println("Skipping unknown journal record: " + record[0]);
+        }
+    }
+    
+    private Transaction applyBorrow(String transactionId, String userId, String bookId, String date, String dueDate) {
+        Transaction transaction = transactions.add(transactionId, userId, bookId, date, "null", dueDate);
+        transactionIds.observe(transactionId);
+        overdue.add(newLoan(transactionId, userId, bookId, date, dueDate));
+        HoldQueues.Hold ready = holds.readyHold(bookId);
+        if (ready != null && ready.getUserId().equals(userId)) {
+            holds.takeReady(bookId);
+        }
+        Book book = findBookById(bookId);
+        if (book != null) {
+            book.setAvailable(false);
+        }
+        User user = findUserById(userId);
+        if (user != null) {
+            user.addBorrowedBook(bookId);
+        }
+        return transaction;
+    }
+    
+    private void applyReturn(String userId, String bookId, String date) {
+        Transaction transaction = findActiveTransaction(userId, bookId);
+        if (transaction != null) {
+            transactions.markReturned(transaction, date);
+            overdue.remove(transaction.getTransactionId());
+        }
+        releaseCopy(bookId, date);
+        User user = findUserById(userId);
+        if (user != null) {
+            user.removeBorrowedBook(bookId);
+        }
+    }
+    
+    private void applyHold(String userId, String bookId, String date) {
+        holds.add(new HoldQueues.Hold(userId, bookId, date, "null"));
+    }
+    
+    private void applyCancelHold(String userId, String bookId, String date) {
+        HoldQueues.Hold hold = holds.cancel(userId, bookId);
+        if (hold != null && hold.isReady()) {
+            releaseCopy(bookId, date);
+        }
+    }
+    
+    private void applyExpireHold(String bookId, String date) {
+        if (holds.takeReady(bookId) != null) {
+            releaseCopy(bookId, date);
+        }
+    }
+    
+    // A copy coming back from a loan or an unclaimed hold goes to the next hold in line, or back on the shelf.
+    private void releaseCopy(String bookId, String date) {
+        HoldQueues.Hold next = holds.handOff(bookId, LocalDate.parse(date).plusDays(PICKUP_DAYS).toString());
+        Book book = findBookById(bookId);
+        if (book != null) {
+            book.setAvailable(next == null);
+        }
+    }
+    
+    // Open loans are read once at load; from then on borrows and returns keep the scheduler current.
+    private void rebuildOverdue() {
+        List<OverdueScheduler.Loan> loans = new ArrayList<>();
+        for (Transaction transaction : transactions.openTransactions()) {
+            loans.add(newLoan(transaction.getTransactionId(), transaction.getUserId(), transaction.getBookId(),
+                    transaction.getDateBorrowed(), transaction.getDateDue()));
+        }
+        overdue.rebuild(loans);
+    }
+    
+    private OverdueScheduler.Loan newLoan(String transactionId, String userId, String bookId, String date, String dueDate) {
+        return new OverdueScheduler.Loan(transactionId, userId, bookId, date, LocalDate.parse(dueDate));
+    }
+    
+    // The loan period is library.loanDays.<role> days for the borrower's role, else library.loanDays
+    // (default 14). It is applied once, when the book is borrowed; the loan keeps that due date.
+    private LocalDate dueDate(String userId, String dateBorrowed) {
+        User user = findUserById(userId);
+        String role = user == null ? "user" : user.getRole().toLowerCase();
+        return LocalDate.parse(dateBorrowed).plusDays(Integer.getInteger("library.loanDays." + role, DEFAULT_LOAN_DAYS));
+    }
+    
+    // Closed loans from before due dates were stored have none; the current policy stands in.
+    public LocalDate getDueDate(Transaction transaction) {
+        String due = transaction.getDateDue();
+        return due.equals("null") ? dueDate(transaction.getUserId(), transaction.getDateBorrowed()) : LocalDate.parse(due);
+    }
+    
+    public List<OverdueScheduler.Loan> getOverdueLoans() {
+        return overdue.overdueLoans();
+    }
+    
+    private Book applyAddBook(String id, String title, String author, boolean available) {
+        Book book = new Book(id, title, author, available);
+        if (books.add(book)) {
+            searchIndex.add(book);
+            searchCache.invalidate(null, null, title, author);
+            booksChanged = true;
+        }
+        return book;
+    }
+    
+    private void applyUpdateBook(String id, String title, String author) {
+        Book book = findBookById(id);
+        if (book != null && !(book.getTitle().equals(title) && book.getAuthor().equals(author))) {
+            searchCache.invalidate(book.getTitle(), book.getAuthor(), title, author);
+            book.setTitle(title);
+            book.setAuthor(author);
+            searchIndex.update(book);
+            booksChanged = true;
+        }
+    }
+    
+    private void applyDeleteBook(String id) {
+        Book book = findBookById(id);
+        if (book != null) {
+            books.remove(book);
+            searchIndex.remove(id);
+            searchCache.invalidate(book.getTitle(), book.getAuthor(), null, null);
+            booksChanged = true;
+        }
+    }
+    
+    private User applyAddUser(String id, String name, String password, String role) {
+        User user = new User(id, name, password, role);
+        registerUser(user);
+        usersChanged = true;
+        return user;
+    }
+    
+    private void registerUser(User user) {
+        if (users.add(user)) {
+            usersByName.computeIfAbsent(user.getName(), k -> new ArrayList<>(1)).add(user);
+        }
+    }
+    
+    private void unindexName(User user) {
+        List<User> named = usersByName.get(user.getName());
+        if (named != null) {
+            named.remove(user);
+            if (named.isEmpty()) {
+                usersByName.remove(user.getName());
             }
         }
-        return null;
     }
     
-    private Book findBookById(String id) {
-        for (Book book : books) {
-            if (book.getBookId().equals(id)) {
-                return book;
+    private void applyUpdateUser(String id, String name, String password, String role) {
+        User user = findUserById(id);
+        if (user != null) {
+            if (!user.getName().equals(name)) {
+                unindexName(user);
+                user.setName(name);
+                usersByName.computeIfAbsent(name, k -> new ArrayList<>(1)).add(user);
             }
+            user.setPassword(password);
+            user.setRole(role);
+            usersChanged = true;
         }
-        return null;
     }
     
-    private Transaction findActiveTransaction(String userId, String bookId) {
-        for (Transaction transaction : transactions) {
-            if (transaction.getUserId().equals(userId) && 
-                transaction.getBookId().equals(bookId) && 
-                transaction.getDateReturned().equals("null")) {
-                return transaction;
+    private void applyDeleteUser(String id) {
+        User user = findUserById(id);
+        if (user != null) {
+            users.remove(user);
+            unindexName(user);
+            usersChanged = true;
+        }
+    }
+    
+    public List<Book> getBooks() {
+        stateLock.readLock().lock();
+        try {
+            List<Book> all = new ArrayList<>(books.size());
+            for (Book book : books) {
+                all.add(book);
             }
+            return all;
+        } finally {
+            stateLock.readLock().unlock();
         }
-        return null;
     }
     
-    private String generateTransactionId() {
-        if (transactions.isEmpty()) {
-            return "T001";
+    public List<User> getUsers() {
+        stateLock.readLock().lock();
+        try {
+            List<User> all = new ArrayList<>(users.size());
+            for (User user : users) {
+                all.add(user);
+            }
+            return all;
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+    
+    // Recent transactions merged with the rolled ones, in ID order, reading segments as it goes.
+    public Iterable<Transaction> getTransactions() {
+        ensureHistoryLoaded();
+        TransactionLedger recent = transactions;
+        return () -> history.merge(recent.iterator());
+    }
+    
+    // Loans borrowed from one date to the other, inclusive, in date order. Results are read from the
+    // date indexes and the overlapping history blocks as they are iterated, not collected first.
+    public Iterable<Transaction> getTransactionsBorrowedBetween(LocalDate from, LocalDate to) {
+        ensureHistoryLoaded();
+        TransactionLedger recent = transactions;
+        return () -> history.between(false, from, to, recent.borrowedBetween(from, to));
+    }
+    
+    public Iterable<Transaction> getTransactionsReturnedBetween(LocalDate from, LocalDate to) {
+        ensureHistoryLoaded();
+        TransactionLedger recent = transactions;
+        return () -> history.between(true, from, to, recent.returnedBetween(from, to));
+    }
+    
+    public List<Transaction> getTransactionsByUser(String userId) {
+        ensureHistoryLoaded();
+        List<Transaction> recent = transactions.findByUser(userId);
+        try {
+            return mergeById(history.findByUser(userId), recent);
+        } catch (IOException e) {
+            System.out.println("Error reading transaction history: " + e.getMessage());
+            return recent;
         }
-        int maxId = 0;
-        for (Transaction transaction : transactions) {
-            String id = transaction.getTransactionId();
-            int num = Integer.parseInt(id.substring(1));
-            if (num > maxId) {
-                maxId = num;
+    }
+    
+    public List<Transaction> getTransactionsByBook(String bookId) {
+        ensureHistoryLoaded();
+        List<Transaction> recent = transactions.findByBook(bookId);
+        try {
+            return mergeById(history.findByBook(bookId), recent);
+        } catch (IOException e) {
+            System.out.println("Error reading transaction history: " + e.getMessage());
+            return recent;
+        }
+    }
+    
+    // While a roll is being written a loan can be in both lists; it is listed once.
+    private static List<Transaction> mergeById(List<Transaction> rolled, List<Transaction> recent) {
+        if (rolled.isEmpty()) {
+            return recent;
+        }
+        List<Transaction> all = new ArrayList<>(rolled);
+        all.addAll(recent);
+        all.sort(Comparator.comparing(Transaction::getTransactionId, TransactionIdAllocator.ID_ORDER));
+        List<Transaction> merged = new ArrayList<>(all.size());
+        for (Transaction transaction : all) {
+            if (merged.isEmpty() || !merged.get(merged.size() - 1).getTransactionId().equals(transaction.getTransactionId())) {
+                merged.add(transaction);
             }
         }
-        return String.format("T%03d", maxId + 1);
+        return merged;
+    }
+    
+    public User findUserById(String id) {
+        stateLock.readLock().lock();
+        try {
+            return users.get(id);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+    
+    public Book findBookById(String id) {
+        stateLock.readLock().lock();
+        try {
+            return books.get(id);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+    
+    // Package-private so LibraryBenchmark can measure them directly.
+    Transaction findActiveTransaction(String userId, String bookId) {
+        return transactions.findOpen(userId, bookId);
+    }
+    
+    String generateTransactionId() {
+        return transactionIds.nextId();
     }
 }
\ No newline at end of file
@@ -2,10 +2,95 @@
 public class Main {
     public static void main(String[] args) {
         LibrarySystem library = new LibrarySystem();
+        if (args.length > 0 && args[0].equals("--convert")) {
+            String format = args.length > 1 ? args[1].trim().toLowerCase() : "";
+            if (!format.equals("text") && !format.equals("binary")) {
+                System.out.println("Invalid format: " + (args.length > 1 ? args[1] : "(none)"));
+                System.out.println("Usage: java Main --convert text|binary");
+                return;
+            }
+            library.convertSnapshot(format.equals("binary"));
+            return;
+        }
+        try {
+            library.checkFormat();
+        } catch (IllegalStateException e) {
+            System.out.println("Error loading data: " + e.getMessage());
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--migrate-passwords")) {
+            library.migratePasswords();
+            return;
+        }
+        int port = 9090;
+        if (args.length > 1 && args[0].equals("--server")) {
+            port = parsePort(args[1]);
+            if (port < 0) {
+                System.out.println("Invalid port: " + args[1]);
+                System.out.println("Usage: java Main --server [port], with a port from 1 to 65535");
+                return;
+            }
+        }
         library.loadData();
-        
+
+        if (args.length > 0 && args[0].equals("--server")) {
+            runServer(library, port);
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--import")) {
+            importBooks(library, args[1], args.length > 2 ? args[2] : args[1] + ".rejects");
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(library, args.length > 1 ? args[1] : "-");
+            return;
+        }
+
         if (library.login()) {
             library.displayMenu();
         }
     }
-}
\ No newline at end of file
+
+    // The port number, or -1 if the text is not one.
+    private static int parsePort(String text) {
+        try {
+            int port = Integer.parseInt(text.trim());
+            return port >= 1 && port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void runBatch(LibrarySystem library, String file) {
+        try (java.io.BufferedReader in = file.equals("-")
+                ? new java.io.BufferedReader(new java.io.InputStreamReader(System.in, java.nio.charset.StandardCharsets.UTF_8))
+                : java.nio.file.Files.newBufferedReader(java.nio.file.Paths.get(file))) {
+            new BatchProcessor(library, System.out).run(in);
+        } catch (java.io.IOException e) {
+            System.out.println("Error reading batch: " + e.getMessage());
+        }
+        library.shutdown();
+    }
+
+    private static void importBooks(LibrarySystem library, String file, String rejects) {
+        try {
+            new BookImporter(library, System.out).run(java.nio.file.Paths.get(file), java.nio.file.Paths.get(rejects));
+        } catch (java.io.IOException e) {
+            System.out.println("Error importing books: " + e.getMessage());
+        }
+        library.shutdown();
+    }
+
+    private static void runServer(LibrarySystem library, int port) {
+        LibraryServer server = new LibraryServer(library, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            library.shutdown();
+        }));
+        try {
+            server.start();
+        } catch (java.io.IOException e) {
+            System.out.println("Error running server: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+// Metrics.java - Lock-free operation counters and latency histograms
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// One Timer per operation. Recording a latency is a few uncontended atomic adds: a LongAdder count
+// and total, a max accumulator and one histogram bucket. The histogram is log-linear like HDR
+// histograms: every power of two of nanoseconds is split into 16 buckets, so a percentile read back
+// is within about 6% of the true latency across the whole range.
+public class Metrics {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final Map<String, Timer> timers = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final List<Supplier<String>> reports = new CopyOnWriteArrayList<>();
+    private final long startedNanos = System.nanoTime();
+
+    public static class Timer {
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private Timer(String name) {
+            this.name = name;
+        }
+
+        // Records the time since startedNanos, a value taken from System.nanoTime().
+        public void record(long startedNanos) {
+            long nanos = Math.max(0, System.nanoTime() - startedNanos);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            buckets.incrementAndGet(bucketOf(nanos));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long maxNanos() {
+            return maxNanos.get();
+        }
+
+        public double meanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) totalNanos.sum() / n;
+        }
+
+        // The upper edge of the bucket holding the given percentile, capped at the largest value seen.
+        public long percentileNanos(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperEdge(i), maxNanos());
+                }
+            }
+            return maxNanos();
+        }
+    }
+
+    public Timer timer(String name) {
+        synchronized (timers) {
+            return timers.computeIfAbsent(name, Timer::new);
+        }
+    }
+
+    // Adds lines, such as a cache's hit counts, to print below the timers in every snapshot.
+    public void report(Supplier<String> report) {
+        reports.add(report);
+    }
+
+    // A plain-text table of every timer, then each report, as shown in the admin menu and written by export.
+    public String snapshot() {
+        double uptime = Math.max(1e-9, (System.nanoTime() - startedNanos) / 1e9);
+        StringBuilder sb = new StringBuilder();
+        sb.append("Metrics at ").append(LocalDateTime.now().withNano(0))
+                .append(String.format(" (uptime %.0f s, latencies in ms)%n", uptime));
+        sb.append(String.format("%-14s %10s %9s %9s %9s %9s %9s%n", "Operation", "Count", "Ops/sec", "Mean", "p50", "p99", "Max"));
+        List<Timer> snapshot;
+        synchronized (timers) {
+            snapshot = new ArrayList<>(timers.values());
+        }
+        for (Timer timer : snapshot) {
+            long count = timer.count();
+            sb.append(String.format("%-14s %10d %9.1f %9.3f %9.3f %9.3f %9.3f%n", timer.getName(), count, count / uptime,
+                    timer.meanNanos() / 1e6, timer.percentileNanos(50) / 1e6, timer.percentileNanos(99) / 1e6,
+                    timer.maxNanos() / 1e6));
+        }
+        for (Supplier<String> report : reports) {
+            sb.append(report.get());
+        }
+        return sb.toString();
+    }
+
+    // Values below 16 ns get a bucket each; above that, the top four bits after the leading one pick
+    // the bucket within the value's power of two.
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperEdge(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,195 @@
+// OverdueScheduler.java - Due-date queue of open loans with a live list of overdue ones
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Open loans wait in a priority queue ordered by due date. A loan becomes overdue at the midnight
+// after its due date; a timer wakes at each midnight, moves the loans that came due from the head
+// of the queue to the overdue list, and passes each to the listener. The overdue list keeps them in
+// due-date order, so a report reads only overdue loans. A returned loan is dropped from the overdue
+// list at once; one still in the queue is only flagged, and skipped when it reaches the head.
+// Other once-a-day work can ride on the same timer through the midnight hook.
+public class OverdueScheduler implements AutoCloseable {
+    private final PriorityQueue<Loan> queue = new PriorityQueue<>();
+    private final Map<String, Loan> open = new HashMap<>();
+    private final LinkedHashMap<String, Loan> overdue = new LinkedHashMap<>();
+    private final Consumer<Loan> listener;
+    private final Runnable midnight;
+    private ScheduledExecutorService timer;
+
+    public static class Loan implements Comparable<Loan> {
+        private final String transactionId;
+        private final String userId;
+        private final String bookId;
+        private final String dateBorrowed;
+        private final long dueDay;
+        private boolean returned;
+
+        public Loan(String transactionId, String userId, String bookId, String dateBorrowed, LocalDate dueDate) {
+            this.transactionId = transactionId;
+            this.userId = userId;
+            this.bookId = bookId;
+            this.dateBorrowed = dateBorrowed;
+            this.dueDay = dueDate.toEpochDay();
+        }
+
+        public String getTransactionId() {
+            return transactionId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getBookId() {
+            return bookId;
+        }
+
+        public String getDateBorrowed() {
+            return dateBorrowed;
+        }
+
+        public LocalDate getDueDate() {
+            return LocalDate.ofEpochDay(dueDay);
+        }
+
+        public long daysOverdue(LocalDate today) {
+            return Math.max(0, today.toEpochDay() - dueDay);
+        }
+
+        @Override
+        public int compareTo(Loan other) {
+            int byDay = Long.compare(dueDay, other.dueDay);
+            return byDay != 0 ? byDay : TransactionIdAllocator.ID_ORDER.compare(transactionId, other.transactionId);
+        }
+
+        @Override
+        public String toString() {
+            return "TransactionID: " + transactionId + " | UserID: " + userId + " | BookID: " + bookId
+                    + " | Borrowed: " + dateBorrowed + " | Due: " + getDueDate();
+        }
+    }
+
+    public OverdueScheduler(Consumer<Loan> listener, Runnable midnight) {
+        this.listener = listener;
+        this.midnight = midnight;
+    }
+
+    // Replaces everything with the given open loans. Loans already overdue go straight to the
+    // overdue list without reaching the listener.
+    public synchronized void rebuild(Collection<Loan> loans) {
+        queue.clear();
+        open.clear();
+        overdue.clear();
+        List<Loan> live = new ArrayList<>(loans.size());
+        for (Loan loan : loans) {
+            if (open.putIfAbsent(loan.transactionId, loan) == null) {
+                live.add(loan);
+            }
+        }
+        Collections.sort(live);
+        long today = LocalDate.now().toEpochDay();
+        int split = 0;
+        while (split < live.size() && live.get(split).dueDay < today) {
+            overdue.put(live.get(split).transactionId, live.get(split));
+            split++;
+        }
+        queue.addAll(live.subList(split, live.size()));
+    }
+
+    public synchronized void add(Loan loan) {
+        Loan previous = open.put(loan.transactionId, loan);
+        if (previous != null) {
+            previous.returned = true;
+            overdue.remove(loan.transactionId);
+        }
+        if (loan.dueDay < LocalDate.now().toEpochDay()) {
+            overdue.put(loan.transactionId, loan);
+        } else {
+            queue.add(loan);
+        }
+    }
+
+    public synchronized void remove(String transactionId) {
+        Loan loan = open.remove(transactionId);
+        if (loan != null && overdue.remove(transactionId) == null) {
+            loan.returned = true;
+        }
+    }
+
+    public synchronized List<Loan> overdueLoans() {
+        return new ArrayList<>(overdue.values());
+    }
+
+    public synchronized int openCount() {
+        return open.size();
+    }
+
+    // Starts the midnight timer. Loans that came due while the library was closed were placed by
+    // rebuild(), so the first run only has to look at the next midnight.
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "overdue-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduleNext();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    // Moves every loan due before today to the overdue list and returns them in due-date order.
+    synchronized List<Loan> promote(LocalDate today) {
+        List<Loan> due = new ArrayList<>();
+        long day = today.toEpochDay();
+        while (!queue.isEmpty() && queue.peek().dueDay < day) {
+            Loan loan = queue.poll();
+            if (!loan.returned) {
+                overdue.put(loan.transactionId, loan);
+                due.add(loan);
+            }
+        }
+        return due;
+    }
+
+    private void tick() {
+        for (Loan loan : promote(LocalDate.now())) {
+            try {
+                listener.accept(loan);
+            } catch (RuntimeException e) {
+                System.out.println("Error in overdue listener: " + e.getMessage());
+            }
+        }
+        try {
+            midnight.run();
+        } catch (RuntimeException e) {
+            System.out.println("Error in midnight task: " + e.getMessage());
+        }
+        synchronized (this) {
+            if (timer != null) {
+                scheduleNext();
+            }
+        }
+    }
+
+    // Days differ in length across daylight-saving changes, so each midnight is computed afresh.
+    private void scheduleNext() {
+        LocalDateTime now = LocalDateTime.now();
+        long delay = Duration.between(now, now.toLocalDate().plusDays(1).atStartOfDay()).toMillis();
+        timer.schedule(this::tick, Math.max(1, delay), TimeUnit.MILLISECONDS);
+    }
+}
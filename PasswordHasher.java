@@ -0,0 +1,75 @@
+// PasswordHasher.java - Salted PBKDF2 password hashes
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Stored form: pbkdf2$<iterations>$<salt>$<hash>, salt and hash in Base64. The iteration count is
+// kept with each hash, so raising library.password.iterations only affects new and rehashed passwords.
+// Anything else in the password column is a plaintext password from before hashing was introduced.
+public class PasswordHasher {
+    public static final int ITERATIONS = Integer.getInteger("library.password.iterations", 100000);
+    private static final String PREFIX = "pbkdf2$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Checked when a name is unknown, so a miss costs the same as a wrong password.
+    private static final String DECOY = hash("decoy");
+
+    private PasswordHasher() {
+    }
+
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder();
+        return PREFIX + ITERATIONS + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(derive(password, salt, ITERATIONS));
+    }
+
+    public static boolean verify(String password, String stored) {
+        if (!isHashed(stored)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            return MessageDigest.isEqual(derive(password, salt, iterations), expected);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public static void verifyDecoy(String password) {
+        verify(password, DECOY);
+    }
+
+    public static boolean isHashed(String stored) {
+        return stored.startsWith(PREFIX);
+    }
+
+    // Plaintext and hashes made with a different iteration count are rehashed on the next good login.
+    public static boolean needsRehash(String stored) {
+        return !isHashed(stored) || !stored.startsWith(PREFIX + ITERATIONS + "$");
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -9,7 +9,12 @@ public class Person {
     }
     
     public void displayInfo() {
-        System.out.println("ID: " + id + ", Name: " + name);
+        System.out.println(this);
+    }
+    
+    @Override
+    public String toString() {
+        return "ID: " + id + ", Name: " + name;
     }
     
     public String getId() { 
@@ -0,0 +1,212 @@
+// PrefixTrie.java - Compact radix trie for type-ahead completion
+import java.util.*;
+
+// A radix trie: each edge holds the whole run of characters up to the next branch, so a key costs
+// about one node for its leaf and at most one more where it splits an existing edge, whatever its
+// length. The display text is the caller's own string (trimmed), kept once per distinct key.
+public class PrefixTrie {
+    // Keys are cut to this many characters so one long title cannot grow the trie without bound.
+    public static final int MAX_KEY_LENGTH = 48;
+
+    private final Node root = new Node("");
+    private int size;
+
+    public void add(String text) {
+        String key = normalize(text);
+        if (key.isEmpty()) {
+            return;
+        }
+        Node node = root;
+        int at = 0;
+        while (at < key.length()) {
+            int i = node.indexOf(key.charAt(at));
+            if (i < 0) {
+                Node leaf = new Node(key.substring(at));
+                node.insert(-i - 1, leaf);
+                node = leaf;
+                break;
+            }
+            Node child = node.children[i];
+            int common = commonLength(child.edge, key, at);
+            if (common < child.edge.length()) {
+                // Split the edge where the key leaves it.
+                Node branch = new Node(child.edge.substring(0, common));
+                child.edge = child.edge.substring(common);
+                branch.insert(0, child);
+                node.children[i] = branch;
+                child = branch;
+            }
+            node = child;
+            at += common;
+        }
+        if (node.count++ == 0) {
+            node.display = text.trim();
+            size++;
+        }
+    }
+
+    public void remove(String text) {
+        String key = normalize(text);
+        if (key.isEmpty()) {
+            return;
+        }
+        Node parent = null;
+        Node node = root;
+        int at = 0;
+        while (at < key.length()) {
+            int i = node.indexOf(key.charAt(at));
+            if (i < 0) {
+                return;
+            }
+            Node child = node.children[i];
+            if (!key.startsWith(child.edge, at)) {
+                return;
+            }
+            parent = node;
+            node = child;
+            at += child.edge.length();
+        }
+        if (node.count == 0 || --node.count > 0) {
+            return;
+        }
+        node.display = null;
+        size--;
+        if (node.childCount == 0) {
+            parent.removeChild(node.edge.charAt(0));
+            if (parent != root && parent.count == 0 && parent.childCount == 1) {
+                absorbChild(parent);
+            }
+        } else if (node.childCount == 1) {
+            absorbChild(node);
+        }
+    }
+
+    // Up to limit entries starting with the prefix, in alphabetical order.
+    public List<String> complete(String prefix, int limit) {
+        List<String> results = new ArrayList<>();
+        String key = normalize(prefix);
+        if (key.isEmpty()) {
+            return results;
+        }
+        Node node = root;
+        int at = 0;
+        while (at < key.length()) {
+            int i = node.indexOf(key.charAt(at));
+            if (i < 0) {
+                return results;
+            }
+            Node child = node.children[i];
+            int common = commonLength(child.edge, key, at);
+            if (at + common < key.length() && common < child.edge.length()) {
+                return results;
+            }
+            node = child;
+            at += common;
+        }
+        collect(node, limit, results);
+        return results;
+    }
+
+    private void collect(Node node, int limit, List<String> results) {
+        if (results.size() >= limit) {
+            return;
+        }
+        if (node.count > 0) {
+            results.add(node.display);
+        }
+        for (int i = 0; i < node.childCount && results.size() < limit; i++) {
+            collect(node.children[i], limit, results);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // A node with no entry of its own and one child is folded into that child.
+    private static void absorbChild(Node node) {
+        Node child = node.children[0];
+        node.edge = node.edge + child.edge;
+        node.count = child.count;
+        node.display = child.display;
+        node.labels = child.labels;
+        node.children = child.children;
+        node.childCount = child.childCount;
+    }
+
+    private static int commonLength(String edge, String key, int at) {
+        int max = Math.min(edge.length(), key.length() - at);
+        int n = 0;
+        while (n < max && edge.charAt(n) == key.charAt(at + n)) {
+            n++;
+        }
+        return n;
+    }
+
+    public static String normalize(String text) {
+        StringBuilder sb = new StringBuilder(Math.min(text.length(), MAX_KEY_LENGTH));
+        boolean pendingSpace = false;
+        for (int i = 0; i < text.length() && sb.length() < MAX_KEY_LENGTH; i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (pendingSpace && sb.length() > 0) {
+                    sb.append(' ');
+                    if (sb.length() == MAX_KEY_LENGTH) {
+                        break;
+                    }
+                }
+                sb.append(Character.toLowerCase(c));
+                pendingSpace = false;
+            } else {
+                pendingSpace = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    // Children are kept in parallel arrays sorted by the first character of their edge instead of a
+    // map per node.
+    private static class Node {
+        private String edge;
+        private char[] labels;
+        private Node[] children;
+        private int childCount;
+        private int count;
+        private String display;
+
+        Node(String edge) {
+            this.edge = edge;
+        }
+
+        void insert(int at, Node node) {
+            if (labels == null) {
+                labels = new char[2];
+                children = new Node[2];
+            } else if (childCount == labels.length) {
+                labels = Arrays.copyOf(labels, childCount * 2);
+                children = Arrays.copyOf(children, childCount * 2);
+            }
+            System.arraycopy(labels, at, labels, at + 1, childCount - at);
+            System.arraycopy(children, at, children, at + 1, childCount - at);
+            labels[at] = node.edge.charAt(0);
+            children[at] = node;
+            childCount++;
+        }
+
+        void removeChild(char c) {
+            int i = indexOf(c);
+            if (i < 0) {
+                return;
+            }
+            System.arraycopy(labels, i + 1, labels, i, childCount - i - 1);
+            System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+            childCount--;
+            children[childCount] = null;
+        }
+
+        // The child's position, or -(insertion point) - 1 when no edge starts with c.
+        int indexOf(char c) {
+            return labels == null ? -1 : Arrays.binarySearch(labels, 0, childCount, c);
+        }
+    }
+}
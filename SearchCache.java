@@ -0,0 +1,163 @@
+// SearchCache.java - Bounded LRU of catalogue search results with per-word invalidation
+import java.util.*;
+
+// Results are kept as book IDs under the query's field and lower-cased words, so "Gatsby " and
+// "gatsby" share an entry and a book's availability is read fresh on every hit. The least recently
+// used entry goes when there are more than capacity entries or more than maxResults IDs held.
+//
+// A book's title or author matters to an entry when one of its words starts with one of the
+// entry's query words: the book may enter or leave the results, or shift the weight of that word
+// and so the ranking. Each query word indexes its entries, so a change looks up every prefix of
+// the book's old and new words and drops only those entries. The catalogue size in the ranking
+// weight moves on every add or delete, which weighs each word differently, so a multi-word entry
+// keeps its unranked matches and is ranked again on a hit when the size differs from its last one.
+public class SearchCache {
+    private final int capacity;
+    private final long maxResults;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<Entry>> byWord = new HashMap<>();
+    private long held;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+    private long reranks;
+
+    private static class Entry {
+        private final String key;
+        private final SearchIndex.Field field;
+        private final Set<String> words;
+        private final SearchIndex.Matches matches;
+        private List<String> bookIds;
+        private int rankedFor;
+
+        private Entry(String key, SearchIndex.Field field, List<String> words, SearchIndex.Matches matches,
+                List<String> bookIds, int total) {
+            this.key = key;
+            this.field = field;
+            this.words = new HashSet<>(words);
+            this.matches = matches.dependsOnTotal() ? matches : null;
+            this.bookIds = bookIds;
+            this.rankedFor = total;
+        }
+
+        private boolean reads(boolean title) {
+            return field == SearchIndex.Field.ANY || field == (title ? SearchIndex.Field.TITLE : SearchIndex.Field.AUTHOR);
+        }
+    }
+
+    public SearchCache(int capacity, long maxResults) {
+        this.capacity = Math.max(0, capacity);
+        this.maxResults = maxResults;
+    }
+
+    private static String key(SearchIndex.Field field, List<String> words) {
+        return field + ":" + String.join(" ", words);
+    }
+
+    // The cached book IDs for the query ranked for a catalogue of total books, or null on a miss.
+    public synchronized List<String> get(SearchIndex.Field field, List<String> words, int total) {
+        if (capacity == 0) {
+            return null;
+        }
+        Entry entry = entries.get(key(field, words));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (entry.matches != null && entry.rankedFor != total) {
+            entry.bookIds = Collections.unmodifiableList(entry.matches.rank(total));
+            entry.rankedFor = total;
+            reranks++;
+        }
+        return entry.bookIds;
+    }
+
+    // Stores the matches with bookIds, their ranking for a catalogue of total books.
+    public synchronized void put(SearchIndex.Field field, List<String> words, SearchIndex.Matches matches,
+            List<String> bookIds, int total) {
+        if (capacity == 0 || words.isEmpty() || bookIds.size() > maxResults) {
+            return;
+        }
+        Entry entry = new Entry(key(field, words), field, words, matches,
+                Collections.unmodifiableList(new ArrayList<>(bookIds)), total);
+        Entry previous = entries.put(entry.key, entry);
+        if (previous != null) {
+            unlink(previous);
+        }
+        for (String word : entry.words) {
+            byWord.computeIfAbsent(word, k -> new HashSet<>()).add(entry);
+        }
+        held += bookIds.size();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > capacity || held > maxResults) {
+            Entry victim = eldest.next();
+            eldest.remove();
+            unlink(victim);
+            evictions++;
+        }
+    }
+
+    // Drops the entries a book's title or author could affect. Pass null for the side that does not
+    // exist: the old text of a new book, or the new text of a deleted one.
+    public synchronized void invalidate(String oldTitle, String oldAuthor, String newTitle, String newAuthor) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Set<Entry> stale = new HashSet<>();
+        if (!Objects.equals(oldTitle, newTitle)) {
+            collect(oldTitle, true, stale);
+            collect(newTitle, true, stale);
+        }
+        if (!Objects.equals(oldAuthor, newAuthor)) {
+            collect(oldAuthor, false, stale);
+            collect(newAuthor, false, stale);
+        }
+        for (Entry entry : stale) {
+            entries.remove(entry.key);
+            unlink(entry);
+            invalidations++;
+        }
+    }
+
+    // One line for the metrics report.
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("Search cache: %d/%d entries, %d results held, %d hits, %d misses (%.1f%% hits), %d evictions, %d invalidations, %d re-ranked%n",
+                entries.size(), capacity, held, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, invalidations,
+                reranks);
+    }
+
+    private void collect(String text, boolean title, Set<Entry> stale) {
+        if (text == null) {
+            return;
+        }
+        for (String token : SearchIndex.tokenize(text)) {
+            for (int end = 1; end <= token.length(); end++) {
+                Set<Entry> matching = byWord.get(token.substring(0, end));
+                if (matching == null) {
+                    continue;
+                }
+                for (Entry entry : matching) {
+                    if (entry.reads(title)) {
+                        stale.add(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private void unlink(Entry entry) {
+        for (String word : entry.words) {
+            Set<Entry> matching = byWord.get(word);
+            if (matching != null) {
+                matching.remove(entry);
+                if (matching.isEmpty()) {
+                    byWord.remove(word);
+                }
+            }
+        }
+        held -= entry.bookIds.size();
+    }
+}
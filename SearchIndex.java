@@ -0,0 +1,232 @@
+// SearchIndex.java - Inverted token index over book titles and authors
+import java.util.*;
+
+public class SearchIndex {
+    public enum Field { TITLE, AUTHOR, ANY }
+
+    private static final int TITLE_WEIGHT = 2;
+    private static final int AUTHOR_WEIGHT = 1;
+    // Only the last query word, the one still being typed, matches as a prefix, and only once it is
+    // MIN_PREFIX letters long; it then reads at most MAX_EXPANSIONS words, in sorted order. A short
+    // prefix like "a" would otherwise read the postings of a large share of the vocabulary.
+    private static final int MIN_PREFIX = Integer.getInteger("library.search.minPrefix", 3);
+    private static final int MAX_EXPANSIONS = Integer.getInteger("library.search.maxExpansions", 64);
+
+    // token -> (bookId -> packed hit counts: title hits in the high 16 bits, author hits in the low 16)
+    private final TreeMap<String, Map<String, Integer>> postings;
+    private final Map<String, String[]> indexedText;
+    private final PrefixTrie titles;
+    private final PrefixTrie authors;
+
+    public SearchIndex() {
+        postings = new TreeMap<>();
+        indexedText = new HashMap<>();
+        titles = new PrefixTrie();
+        authors = new PrefixTrie();
+    }
+
+    public void add(Book book) {
+        String bookId = book.getBookId();
+        remove(bookId);
+        indexedText.put(bookId, new String[] { book.getTitle(), book.getAuthor() });
+        titles.add(book.getTitle());
+        authors.add(book.getAuthor());
+        for (String token : tokenize(book.getTitle())) {
+            postings.computeIfAbsent(token, k -> new HashMap<>()).merge(bookId, 1 << 16, Integer::sum);
+        }
+        for (String token : tokenize(book.getAuthor())) {
+            postings.computeIfAbsent(token, k -> new HashMap<>()).merge(bookId, 1, Integer::sum);
+        }
+    }
+
+    public void update(Book book) {
+        add(book);
+    }
+
+    public void remove(String bookId) {
+        String[] text = indexedText.remove(bookId);
+        if (text == null) {
+            return;
+        }
+        titles.remove(text[0]);
+        authors.remove(text[1]);
+        for (String field : text) {
+            for (String token : tokenize(field)) {
+                Map<String, Integer> list = postings.get(token);
+                if (list != null) {
+                    list.remove(bookId);
+                    if (list.isEmpty()) {
+                        postings.remove(token);
+                    }
+                }
+            }
+        }
+    }
+
+    // The books matching a query with each one's weighted hits per term and how many books each
+    // term matched. The term weight log(1 + total/df) depends on the catalogue size, so the order
+    // of a multi-term result can change on any add or delete; rank() orders for a given size.
+    public static final class Matches {
+        private static final Matches NONE = new Matches(new String[0], new int[0][], new int[0]);
+
+        private final String[] bookIds;
+        private final int[][] hitCounts;
+        private final int[] documentCounts;
+
+        private Matches(String[] bookIds, int[][] hitCounts, int[] documentCounts) {
+            this.bookIds = bookIds;
+            this.hitCounts = hitCounts;
+            this.documentCounts = documentCounts;
+        }
+
+        public int size() {
+            return bookIds.length;
+        }
+
+        // A single term scales every score alike, so only multi-term matches reorder with the size.
+        public boolean dependsOnTotal() {
+            return documentCounts.length > 1;
+        }
+
+        // Best matches first, ties by ID.
+        public List<String> rank(int total) {
+            double[] scores = new double[bookIds.length];
+            for (int t = 0; t < documentCounts.length; t++) {
+                double weight = Math.log(1.0 + (double) Math.max(1, total) / documentCounts[t]);
+                for (int i = 0; i < scores.length; i++) {
+                    scores[i] += hitCounts[t][i] * weight;
+                }
+            }
+            Integer[] order = new Integer[bookIds.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                int byScore = Double.compare(scores[b], scores[a]);
+                return byScore != 0 ? byScore : bookIds[a].compareTo(bookIds[b]);
+            });
+            List<String> results = new ArrayList<>(order.length);
+            for (int i : order) {
+                results.add(bookIds[i]);
+            }
+            return results;
+        }
+    }
+
+    // Every query term must match as a whole word in the chosen field, the last one also as a word
+    // prefix; best matches first.
+    public List<String> search(String query, Field field) {
+        return match(query, field).rank(size());
+    }
+
+    // The unranked matches for search(), for callers that keep them and rank again later.
+    public Matches match(String query, Field field) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return Matches.NONE;
+        }
+        List<Map<String, Integer>> matches = new ArrayList<>();
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            boolean prefix = i == terms.size() - 1 && term.length() >= MIN_PREFIX;
+            Map<String, Integer> hits = hits(term, prefix, field);
+            if (hits.isEmpty()) {
+                return Matches.NONE;
+            }
+            matches.add(hits);
+        }
+        matches.sort(Comparator.comparingInt(Map::size));
+
+        List<String> bookIds = new ArrayList<>();
+        List<int[]> counts = new ArrayList<>();
+        for (String bookId : matches.get(0).keySet()) {
+            int[] perTerm = new int[matches.size()];
+            boolean inAll = true;
+            for (int t = 0; t < perTerm.length; t++) {
+                Integer hitCount = matches.get(t).get(bookId);
+                if (hitCount == null) {
+                    inAll = false;
+                    break;
+                }
+                perTerm[t] = hitCount;
+            }
+            if (inAll) {
+                bookIds.add(bookId);
+                counts.add(perTerm);
+            }
+        }
+
+        int[][] hitCounts = new int[matches.size()][bookIds.size()];
+        int[] documentCounts = new int[matches.size()];
+        for (int t = 0; t < documentCounts.length; t++) {
+            documentCounts[t] = matches.get(t).size();
+            for (int i = 0; i < bookIds.size(); i++) {
+                hitCounts[t][i] = counts.get(i)[t];
+            }
+        }
+        return new Matches(bookIds.toArray(new String[0]), hitCounts, documentCounts);
+    }
+
+    // Number of indexed books, the total in the ranking weight.
+    public int size() {
+        return indexedText.size();
+    }
+
+    // Titles and/or authors that begin with the typed prefix, for type-ahead.
+    public List<String> complete(String prefix, Field field, int limit) {
+        List<String> results = new ArrayList<>();
+        if (field != Field.AUTHOR) {
+            results.addAll(titles.complete(prefix, limit));
+        }
+        if (field != Field.TITLE) {
+            results.addAll(authors.complete(prefix, limit - Math.min(limit, results.size())));
+        }
+        return results;
+    }
+
+    // Weighted hit count per book for the term, or for the first MAX_EXPANSIONS indexed tokens
+    // starting with it.
+    private Map<String, Integer> hits(String term, boolean prefix, Field field) {
+        Collection<Map<String, Integer>> lists;
+        if (prefix) {
+            lists = new ArrayList<>();
+            for (Map<String, Integer> list : postings.subMap(term, true, term + Character.MAX_VALUE, false).values()) {
+                if (lists.size() == MAX_EXPANSIONS) {
+                    break;
+                }
+                lists.add(list);
+            }
+        } else {
+            Map<String, Integer> list = postings.get(term);
+            lists = list == null ? Collections.<Map<String, Integer>>emptyList() : Collections.singletonList(list);
+        }
+        Map<String, Integer> hits = new HashMap<>();
+        for (Map<String, Integer> list : lists) {
+            for (Map.Entry<String, Integer> entry : list.entrySet()) {
+                int packed = entry.getValue();
+                int titleHits = field == Field.AUTHOR ? 0 : packed >>> 16;
+                int authorHits = field == Field.TITLE ? 0 : packed & 0xFFFF;
+                int weighted = titleHits * TITLE_WEIGHT + authorHits * AUTHOR_WEIGHT;
+                if (weighted > 0) {
+                    hits.merge(entry.getKey(), weighted, Integer::sum);
+                }
+            }
+        }
+        return hits;
+    }
+
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
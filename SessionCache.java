@@ -0,0 +1,65 @@
+// SessionCache.java - Bounded LRU of login session tokens
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A token stands in for the password after one full login, so resuming a session costs a map
+// lookup instead of a password hash. Each entry remembers the stored credential it was issued
+// against; a password change or deletion makes it stale. The least recently used token is dropped
+// when the cache is full, and tokens expire after ttlMillis.
+public class SessionCache {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final Map<String, Session> sessions;
+
+    public static class Session {
+        public final String userId;
+        public final String credential;
+        private final long expiresAt;
+
+        private Session(String userId, String credential, long expiresAt) {
+            this.userId = userId;
+            this.credential = credential;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public SessionCache(int capacity, long ttlMillis) {
+        this.capacity = Math.max(1, capacity);
+        this.ttlMillis = ttlMillis;
+        this.sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > SessionCache.this.capacity;
+            }
+        };
+    }
+
+    public synchronized String issue(User user) {
+        byte[] bytes = new byte[18];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(user.getId(), user.getPassword(), System.currentTimeMillis() + ttlMillis));
+        return token;
+    }
+
+    public synchronized Session get(String token) {
+        Session session = sessions.get(token);
+        if (session != null && System.currentTimeMillis() > session.expiresAt) {
+            sessions.remove(token);
+            return null;
+        }
+        return session;
+    }
+
+    public synchronized void revoke(String token) {
+        sessions.remove(token);
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+}
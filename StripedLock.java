@@ -0,0 +1,21 @@
+// StripedLock.java - Fixed pool of locks selected by key hash
+import java.util.concurrent.locks.ReentrantLock;
+
+// Operations on different keys usually land on different stripes and never wait for each other.
+public class StripedLock {
+    private final ReentrantLock[] stripes;
+
+    public StripedLock(int minimumStripes) {
+        int count = Integer.highestOneBit(Math.max(1, minimumStripes - 1)) << 1;
+        stripes = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock lockFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,262 @@
+// SyntheticData.java - Generates data files of any size for benchmarks and load tests
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.Random;
+
+// IDs are dense and zero-padded (U0000001, B0000001, T001...), so a benchmark can pick valid IDs
+// without reading the files back. Titles are three to five words from a made-up vocabulary and
+// authors come from a pool a fiftieth the size of the catalogue, which gives searches a realistic
+// mix of rare and common terms. Every user's password is "pw" followed by the user number.
+//
+// Book popularity follows a Zipf distribution over a shuffled ranking: the book at rank r is chosen
+// in proportion to 1 / r^s, so with s = 1 a few thousand titles account for most loans. Closed loans
+// run forward in time with their IDs, and open loans are spread over borrowers who hold one to three
+// books each. An exponent of 0 makes every book equally popular.
+//
+//   java SyntheticData <dir> <books> <users> <closed loans> [open loans]
+//
+// -Dsynthetic.zipf (default 1.0), -Dsynthetic.loanRatio (open loans as a fraction of books when no
+// count is given, default 0.05) and -Dsynthetic.seed (default 42) shape the data.
+public class SyntheticData {
+    public static final int VOCABULARY = 5000;
+    private static final String[] SYLLABLES = { "ka", "lo", "mi", "ren", "tas", "vo", "del", "shi", "qua", "ber",
+            "nor", "fa", "zel", "tri", "mon", "ul", "gra", "pe", "sor", "wyn" };
+    private static final int HISTORY_DAYS = 730;
+
+    private final int books;
+    private final int users;
+    private final int openLoans;
+    private final int history;
+    private final long seed;
+    private final double zipfExponent;
+
+    public SyntheticData(int books, int users, int openLoans, int history, long seed) {
+        this(books, users, openLoans, history, seed, 0);
+    }
+
+    public SyntheticData(int books, int users, int openLoans, int history, long seed, double zipfExponent) {
+        if (openLoans > Math.min(books, users * 3)) {
+            throw new IllegalArgumentException("Too many open loans for " + users + " users and " + books + " books.");
+        }
+        this.books = books;
+        this.users = users;
+        this.openLoans = openLoans;
+        this.history = history;
+        this.seed = seed;
+        this.zipfExponent = zipfExponent;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("Usage: java SyntheticData <dir> <books> <users> <closed loans> [open loans]");
+            return;
+        }
+        int books = Integer.parseInt(args[1]);
+        int users = Integer.parseInt(args[2]);
+        int history = Integer.parseInt(args[3]);
+        double loanRatio = Double.parseDouble(System.getProperty("synthetic.loanRatio", "0.05"));
+        int openLoans = args.length > 4 ? Integer.parseInt(args[4]) : (int) Math.min(users * 3L, (long) (books * loanRatio));
+        double zipf = Double.parseDouble(System.getProperty("synthetic.zipf", "1.0"));
+        long seed = Long.getLong("synthetic.seed", 42L);
+
+        long start = System.nanoTime();
+        new SyntheticData(books, users, openLoans, history, seed, zipf).writeTo(Paths.get(args[0]));
+        System.out.println("Wrote " + books + " books, " + users + " users, " + history + " closed and " + openLoans
+                + " open loans to " + args[0] + " in " + (System.nanoTime() - start) / 1000000 + " ms.");
+    }
+
+    public static String userId(int n) {
+        return pad('U', n, 7);
+    }
+
+    public static String bookId(int n) {
+        return pad('B', n, 7);
+    }
+
+    public static String userName(int n) {
+        return "User " + n;
+    }
+
+    public static String password(int n) {
+        return "pw" + n;
+    }
+
+    // A pronounceable word, different for every n below VOCABULARY.
+    public static String word(int n) {
+        StringBuilder sb = new StringBuilder();
+        int rest = n;
+        do {
+            sb.append(SYLLABLES[rest % SYLLABLES.length]);
+            rest /= SYLLABLES.length;
+        } while (rest > 0);
+        return sb.toString();
+    }
+
+    // The book number at each popularity rank, rank 0 the most popular. The same seed always gives
+    // the same ranking, so a load driver can draw books the way the history was generated.
+    public static int[] popularityRanking(int books, long seed) {
+        int[] order = new int[books];
+        for (int i = 0; i < books; i++) {
+            order[i] = i + 1;
+        }
+        Random random = new Random(seed ^ 0x5DEECE66DL);
+        for (int i = books - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+
+    // Draws ranks 0..n-1 with probability proportional to 1 / (rank + 1)^exponent from a
+    // precomputed cumulative table, by binary search.
+    public static class Zipf {
+        private final double[] cumulative;
+
+        public Zipf(int n, double exponent) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        public int next(Random random) {
+            double u = random.nextDouble();
+            int low = 0;
+            int high = cumulative.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] < u) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    // Writes users.txt, books.txt, loans.txt, transactions.txt and transactions.seq into dir.
+    public void writeTo(Path dir) throws IOException {
+        Random random = new Random(seed);
+        Files.createDirectories(dir);
+        try (Writer out = writer(dir.resolve("users.txt"))) {
+            for (int i = 1; i <= users; i++) {
+                line(out, userId(i), userName(i), password(i), i % 1000 == 0 ? "admin" : "user");
+            }
+        }
+
+        int[] ranking = popularityRanking(books, seed);
+        Zipf popularity = new Zipf(books, zipfExponent);
+        int[] lent = pickOpenLoans(random, ranking, popularity);
+        boolean[] onLoan = new boolean[books + 1];
+        for (int k = 0; k < openLoans; k++) {
+            onLoan[lent[k]] = true;
+        }
+        int authors = Math.max(1, books / 50);
+        try (Writer out = writer(dir.resolve("books.txt"))) {
+            for (int i = 1; i <= books; i++) {
+                line(out, bookId(i), title(random), "Author " + word(random.nextInt(authors)), String.valueOf(!onLoan[i]));
+            }
+        }
+
+        // Borrow dates advance with the ID across the last two years, a month before today at the latest.
+        LocalDate first = LocalDate.now().minusDays(HISTORY_DAYS + 30);
+        try (Writer out = writer(dir.resolve("transactions.txt"))) {
+            for (int t = 1; t <= history; t++) {
+                LocalDate borrowed = first.plusDays((long) t * HISTORY_DAYS / Math.max(1, history));
+                line(out, TransactionIdAllocator.format(t), userId(1 + random.nextInt(users)), bookId(ranking[popularity.next(random)]),
+                        borrowed.toString(), borrowed.plusDays(1 + random.nextInt(28)).toString());
+            }
+        }
+
+        int[] holders = pickHolders(random);
+        LocalDate today = LocalDate.now();
+        try (Writer out = writer(dir.resolve("loans.txt"))) {
+            for (int k = 0; k < openLoans; k++) {
+                line(out, TransactionIdAllocator.format(history + k + 1L), userId(holders[k]), bookId(lent[k]),
+                        today.minusDays(random.nextInt(21)).toString(), "null");
+            }
+        }
+        Files.write(dir.resolve("transactions.seq"), ((long) history + openLoans + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Popular books are the ones most likely to be out. A draw that hits a book already lent is
+    // retried a few times, then falls through to the next free book in popularity order.
+    private int[] pickOpenLoans(Random random, int[] ranking, Zipf popularity) {
+        int[] lent = new int[openLoans];
+        boolean[] taken = new boolean[books];
+        int nextFree = 0;
+        for (int k = 0; k < openLoans; k++) {
+            int rank = popularity.next(random);
+            for (int attempt = 0; taken[rank] && attempt < 8; attempt++) {
+                rank = popularity.next(random);
+            }
+            if (taken[rank]) {
+                while (taken[nextFree]) {
+                    nextFree++;
+                }
+                rank = nextFree;
+            }
+            taken[rank] = true;
+            lent[k] = ranking[rank];
+        }
+        return lent;
+    }
+
+    // Borrowers hold one book 60% of the time, two 30% and three 10%, up to the borrowing limit.
+    private int[] pickHolders(Random random) {
+        int[] holders = new int[openLoans];
+        byte[] held = new byte[users + 1];
+        int k = 0;
+        while (k < openLoans) {
+            int user = 1 + random.nextInt(users);
+            double roll = random.nextDouble();
+            int count = roll < 0.6 ? 1 : roll < 0.9 ? 2 : 3;
+            while (count > 0 && held[user] < 3 && k < openLoans) {
+                holders[k++] = user;
+                held[user]++;
+                count--;
+            }
+        }
+        return holders;
+    }
+
+    private static String title(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int w = 3 + random.nextInt(3); w > 0; w--) {
+            String word = word(random.nextInt(VOCABULARY));
+            sb.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+            if (w > 1) {
+                sb.append(' ');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String pad(char prefix, int n, int width) {
+        String digits = Integer.toString(n);
+        StringBuilder sb = new StringBuilder(width + 1).append(prefix);
+        for (int i = digits.length(); i < width; i++) {
+            sb.append('0');
+        }
+        return sb.append(digits).toString();
+    }
+
+    private static Writer writer(Path file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private static void line(Writer out, String... fields) throws IOException {
+        out.write(CsvLoader.format(fields));
+        out.write('\n');
+    }
+}
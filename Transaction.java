@@ -1,49 +1,110 @@
 // Transaction.java
+// Either a standalone record (as parsed from a data file or the journal) or a view of one row
+// of a TransactionLedger, which keeps the data itself in columns.
 public class Transaction {
+    private final TransactionLedger ledger;
+    private final int row;
     private String transactionId;
     private String userId;
     private String bookId;
     private String dateBorrowed;
-    private String dateReturned;
+    private volatile String dateReturned;
+    private String dateDue;
     
     public Transaction(String transactionId, String userId, String bookId, String dateBorrowed, String dateReturned) {
+        this(transactionId, userId, bookId, dateBorrowed, dateReturned, "null");
+    }
+    
+    public Transaction(String transactionId, String userId, String bookId, String dateBorrowed, String dateReturned, String dateDue) {
+        this.ledger = null;
+        this.row = -1;
         this.transactionId = transactionId;
         this.userId = userId;
         this.bookId = bookId;
         this.dateBorrowed = dateBorrowed;
         this.dateReturned = dateReturned;
+        this.dateDue = dateDue;
+    }
+    
+    Transaction(TransactionLedger ledger, int row) {
+        this.ledger = ledger;
+        this.row = row;
     }
     
     public void displayTransaction() {
-        String returnStatus = dateReturned.equals("null") ? "Not Returned" : dateReturned;
-        System.out.println("TransactionID: " + transactionId + " | UserID: " + userId + " | BookID: " + bookId + " | Borrowed: " + dateBorrowed + " | Returned: " + returnStatus);
+        System.out.println(this);
+    }
+    
+    @Override
+    public String toString() {
+        String returnStatus = isOpen() ? "Not Returned" : getDateReturned();
+        return "TransactionID: " + getTransactionId() + " | UserID: " + getUserId() + " | BookID: " + getBookId() + " | Borrowed: " + getDateBorrowed() + " | Returned: " + returnStatus;
     }
     
     public String getTransactionId() { 
-        return transactionId; 
+        return ledger != null ? ledger.transactionId(row) : transactionId; 
     }
     
     public String getUserId() { 
-        return userId; 
+        return ledger != null ? ledger.userId(row) : userId; 
     }
     
     public String getBookId() { 
-        return bookId; 
+        return ledger != null ? ledger.bookId(row) : bookId; 
     }
     
     public String getDateBorrowed() { 
-        return dateBorrowed; 
+        return ledger != null ? ledger.dateBorrowed(row) : dateBorrowed; 
     }
     
     public String getDateReturned() { 
-        return dateReturned; 
+        return ledger != null ? ledger.dateReturned(row) : dateReturned; 
+    }
+    
+    // Fixed when the book is borrowed; "null" for a loan saved before due dates were stored.
+    public String getDateDue() { 
+        return ledger != null ? ledger.dateDue(row) : dateDue; 
     }
     
     public void setDateReturned(String dateReturned) { 
-        this.dateReturned = dateReturned; 
+        if (ledger != null) {
+            ledger.markReturned(this, dateReturned);
+        } else {
+            this.dateReturned = dateReturned;
+        }
     }
     
+    public boolean isOpen() {
+        return ledger != null ? ledger.isOpen(row) : "null".equals(dateReturned);
+    }
+    
+    int getRow() {
+        return row;
+    }
+    
+    // An open loan carries its due date as a sixth field; closed history leaves it off.
     public String toFileString() {
-        return transactionId + "," + userId + "," + bookId + "," + dateBorrowed + "," + dateReturned;
+        if (isOpen()) {
+            return CsvLoader.format(getTransactionId(), getUserId(), getBookId(), getDateBorrowed(), getDateReturned(), getDateDue());
+        }
+        return CsvLoader.format(getTransactionId(), getUserId(), getBookId(), getDateBorrowed(), getDateReturned());
+    }
+    
+    // Two views of the same ledger row are the same transaction.
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (ledger == null || !(o instanceof Transaction)) {
+            return false;
+        }
+        Transaction other = (Transaction) o;
+        return ledger == other.ledger && row == other.row;
+    }
+    
+    @Override
+    public int hashCode() {
+        return ledger == null ? System.identityHashCode(this) : 31 * System.identityHashCode(ledger) + row;
     }
-}
\ No newline at end of file
+}
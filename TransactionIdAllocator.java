@@ -0,0 +1,93 @@
+// TransactionIdAllocator.java - Thread-safe sequence for transaction IDs
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransactionIdAllocator {
+    public static final Comparator<String> ID_ORDER = TransactionIdAllocator::compareIds;
+
+    private final AtomicLong lastIssued;
+    private final String sequenceFile;
+
+    public TransactionIdAllocator(String sequenceFile) {
+        this.lastIssued = new AtomicLong();
+        this.sequenceFile = sequenceFile;
+    }
+
+    public void load() {
+        try (BufferedReader br = new BufferedReader(new FileReader(sequenceFile))) {
+            String line = br.readLine();
+            if (line != null) {
+                observe(Long.parseLong(line.trim()));
+            }
+        } catch (FileNotFoundException e) {
+            // First run: the sequence is seeded from loaded transactions instead.
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error reading " + sequenceFile + ": " + e.getMessage());
+        }
+    }
+
+    public void save() throws IOException {
+        AtomicFile.replace(Paths.get(sequenceFile), (lastIssued.get() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void observe(String transactionId) {
+        observe(parse(transactionId));
+    }
+
+    public void observe(long value) {
+        lastIssued.accumulateAndGet(value, Math::max);
+    }
+
+    public long lastIssued() {
+        return lastIssued.get();
+    }
+
+    public String nextId() {
+        return format(lastIssued.incrementAndGet());
+    }
+
+    public Block reserveBlock(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Block size must be positive.");
+        }
+        long end = lastIssued.addAndGet(size);
+        return new Block(end - size + 1, end);
+    }
+
+    public static String format(long value) {
+        return value >= 100 ? "T" + value : String.format("T%03d", value);
+    }
+
+    public static long parse(String transactionId) {
+        return Long.parseLong(transactionId.substring(1));
+    }
+
+    public static int compareIds(String a, String b) {
+        return Long.compare(parse(a), parse(b));
+    }
+
+    // A contiguous range of IDs owned by one writer; not shared between threads.
+    public static class Block {
+        private long next;
+        private final long last;
+
+        private Block(long first, long last) {
+            this.next = first;
+            this.last = last;
+        }
+
+        public boolean hasNext() {
+            return next <= last;
+        }
+
+        public String nextId() {
+            if (next > last) {
+                throw new IllegalStateException("Transaction ID block exhausted.");
+            }
+            return format(next++);
+        }
+    }
+}
@@ -0,0 +1,549 @@
+// TransactionLedger.java - Columnar transaction store with per-user, per-book and open-loan indexes
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Each transaction is one row across parallel primitive arrays: the ID number, interned user and
+// book references, and borrow/return/due dates as epoch days (OPEN for a return while the loan is
+// out, or for a due date that was never stored). Rows never move, so a Transaction handed out is
+// just a view of (ledger, row). The per-user and per-book indexes are linked lists threaded
+// through the rows in ID order; a row that arrives late is linked into its place. Two more arrays
+// keep the rows sorted by borrow day and the closed rows by return day, so a date range is two
+// binary searches and a walk over the rows inside it.
+// Safe for concurrent use: every method holds the ledger monitor briefly.
+public class TransactionLedger implements Iterable<Transaction> {
+    private static final int OPEN = Integer.MIN_VALUE;
+    private static final int NONE = -1;
+
+    private long[] ids = new long[16];
+    private int[] userRefs = new int[16];
+    private int[] bookRefs = new int[16];
+    private int[] borrowed = new int[16];
+    private int[] returned = new int[16];
+    private int[] due = new int[16];
+    private int[] nextByUser = new int[16];
+    private int[] nextByBook = new int[16];
+    private int rows;
+
+    // Rows in transaction ID order. Slots below size are never rewritten; an insert before the end
+    // replaces the array, so iterators keep their snapshot.
+    private int[] order = new int[16];
+    private int size;
+
+    // Interned user and book IDs: an open-addressing table of ref + 1 (0 is empty) over strings.
+    private int[] slots = new int[32];
+    private String[] strings = new String[16];
+    private int stringCount;
+    private int[] userHeads = new int[16];
+    private int[] userTails = new int[16];
+    private int[] bookHeads = new int[16];
+    private int[] bookTails = new int[16];
+
+    private final Map<Long, Transaction> openLoans = new ConcurrentHashMap<>();
+    private int[] recentlyClosed = new int[16];
+    private int closedCount;
+    private boolean openLoansChanged;
+    private final Map<Integer, String> dateStrings = new HashMap<>();
+    private final DayIndex byBorrowed = new DayIndex(false);
+    private final DayIndex byReturned = new DayIndex(true);
+
+    public Transaction add(Transaction transaction) {
+        return add(transaction.getTransactionId(), transaction.getUserId(), transaction.getBookId(),
+                transaction.getDateBorrowed(), transaction.getDateReturned(), transaction.getDateDue());
+    }
+
+    public synchronized Transaction add(String transactionId, String userId, String bookId, String dateBorrowed, String dateReturned,
+            String dateDue) {
+        int row = appendRow(transactionId, userId, bookId, dateBorrowed, dateReturned, dateDue);
+        // IDs are allocated before the ledger is entered, so concurrent borrows can arrive a few places
+        // out of order. The usual in-order row goes on the end; an earlier one is inserted into a copy,
+        // as in DayIndex, so an iterator over the old array keeps its snapshot.
+        int at = size;
+        while (at > 0 && ids[order[at - 1]] > ids[row]) {
+            at--;
+        }
+        if (at == size) {
+            order = ensureCapacity(order, size + 1);
+        } else {
+            int[] copy = new int[Math.max(order.length, size + 1)];
+            System.arraycopy(order, 0, copy, 0, at);
+            System.arraycopy(order, at, copy, at + 1, size - at);
+            order = copy;
+        }
+        order[at] = row;
+        size++;
+        link(row);
+        byBorrowed.insert(row);
+        Transaction view = new Transaction(this, row);
+        if (returned[row] == OPEN) {
+            openLoans.put(loanKey(userRefs[row], bookRefs[row]), view);
+            openLoansChanged = true;
+        } else {
+            byReturned.insert(row);
+        }
+        return view;
+    }
+
+    public synchronized void markReturned(Transaction transaction, String dateReturned) {
+        int row = transaction.getRow();
+        returned[row] = toEpochDay(dateReturned);
+        byReturned.insert(row);
+        openLoans.remove(loanKey(userRefs[row], bookRefs[row]), transaction);
+        recentlyClosed = ensureCapacity(recentlyClosed, closedCount + 1);
+        recentlyClosed[closedCount++] = row;
+        openLoansChanged = true;
+    }
+
+    // Closed history read back from disk is appended row by row, then sortHistory() merges it into ID order.
+    public synchronized void appendHistory(Transaction transaction) {
+        appendRow(transaction.getTransactionId(), transaction.getUserId(), transaction.getBookId(),
+                transaction.getDateBorrowed(), transaction.getDateReturned(), transaction.getDateDue());
+    }
+
+    // Rebuilds the ID order and the user/book lists over every row. Where an ID appears twice the
+    // older row wins, so rows already handed out as views stay visible.
+    public synchronized void sortHistory() {
+        int[] sorted = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            sorted[i] = i;
+        }
+        mergeSort(sorted, new int[rows], 0, rows);
+
+        int[] merged = new int[Math.max(16, rows)];
+        int count = 0;
+        for (int row : sorted) {
+            if (count == 0 || ids[merged[count - 1]] != ids[row]) {
+                merged[count++] = row;
+            }
+        }
+        Arrays.fill(userHeads, NONE);
+        Arrays.fill(userTails, NONE);
+        Arrays.fill(bookHeads, NONE);
+        Arrays.fill(bookTails, NONE);
+        for (int i = 0; i < count; i++) {
+            link(merged[i]);
+        }
+        order = merged;
+        size = count;
+        byBorrowed.rebuild(merged, count);
+        byReturned.rebuild(merged, count);
+    }
+
+    public Collection<Transaction> openTransactions() {
+        return Collections.unmodifiableCollection(openLoans.values());
+    }
+
+    // Transactions closed since the last checkpoint, oldest first.
+    public synchronized List<Transaction> pendingHistory() {
+        List<Transaction> pending = new ArrayList<>(closedCount);
+        for (int i = 0; i < closedCount; i++) {
+            pending.add(new Transaction(this, recentlyClosed[i]));
+        }
+        return pending;
+    }
+
+    // True if a loan was opened or closed since the last call.
+    public synchronized boolean takeOpenLoansChanged() {
+        boolean changed = openLoansChanged;
+        openLoansChanged = false;
+        return changed;
+    }
+
+    public synchronized void historyWritten(int count) {
+        System.arraycopy(recentlyClosed, count, recentlyClosed, 0, closedCount - count);
+        closedCount -= count;
+    }
+
+    // A new ledger with every row except the given closed views of this one, for when they have
+    // moved to history segments. Rows closed since the last checkpoint that stay are still pending.
+    public synchronized TransactionLedger without(Collection<Transaction> dropped) {
+        BitSet gone = new BitSet(rows);
+        for (Transaction transaction : dropped) {
+            gone.set(transaction.getRow());
+        }
+        TransactionLedger kept = new TransactionLedger();
+        int[] moved = new int[rows];
+        for (int i = 0; i < size; i++) {
+            int row = order[i];
+            if (!gone.get(row)) {
+                moved[row] = kept.add(transactionId(row), userId(row), bookId(row), dateBorrowed(row), dateReturned(row), dateDue(row)).getRow();
+            }
+        }
+        for (int i = 0; i < closedCount; i++) {
+            if (!gone.get(recentlyClosed[i])) {
+                kept.recentlyClosed = ensureCapacity(kept.recentlyClosed, kept.closedCount + 1);
+                kept.recentlyClosed[kept.closedCount++] = moved[recentlyClosed[i]];
+            }
+        }
+        kept.openLoansChanged = openLoansChanged;
+        return kept;
+    }
+
+    public synchronized Transaction findOpen(String userId, String bookId) {
+        int userRef = find(userId);
+        int bookRef = find(bookId);
+        return userRef == NONE || bookRef == NONE ? null : openLoans.get(loanKey(userRef, bookRef));
+    }
+
+    public synchronized List<Transaction> findByUser(String userId) {
+        return collect(userId, userHeads, nextByUser);
+    }
+
+    public synchronized List<Transaction> findByBook(String bookId) {
+        return collect(bookId, bookHeads, nextByBook);
+    }
+
+    // Loans borrowed from one date to the other, inclusive, in date order.
+    public synchronized Iterator<Transaction> borrowedBetween(LocalDate from, LocalDate to) {
+        return byBorrowed.range((int) from.toEpochDay(), (int) to.toEpochDay());
+    }
+
+    public synchronized Iterator<Transaction> returnedBetween(LocalDate from, LocalDate to) {
+        return byReturned.range((int) from.toEpochDay(), (int) to.toEpochDay());
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public synchronized Iterator<Transaction> iterator() {
+        int[] snapshot = order;
+        int count = size;
+        return new Iterator<Transaction>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public Transaction next() {
+                if (next >= count) {
+                    throw new NoSuchElementException();
+                }
+                return new Transaction(TransactionLedger.this, snapshot[next++]);
+            }
+        };
+    }
+
+    synchronized String transactionId(int row) {
+        return TransactionIdAllocator.format(ids[row]);
+    }
+
+    synchronized String userId(int row) {
+        return strings[userRefs[row]];
+    }
+
+    synchronized String bookId(int row) {
+        return strings[bookRefs[row]];
+    }
+
+    synchronized String dateBorrowed(int row) {
+        return toDateString(borrowed[row]);
+    }
+
+    synchronized String dateReturned(int row) {
+        return toDateString(returned[row]);
+    }
+
+    synchronized String dateDue(int row) {
+        return toDateString(due[row]);
+    }
+
+    synchronized boolean isOpen(int row) {
+        return returned[row] == OPEN;
+    }
+
+    // Rows ordered by one of the two date columns, ties in the order they arrived. A row for the
+    // latest day, the usual case, goes on the end; anywhere else the array is copied first, so an
+    // iterator over the old one keeps its snapshot.
+    private class DayIndex {
+        private final boolean byReturn;
+        private int[] rows = new int[16];
+        private int count;
+
+        DayIndex(boolean byReturn) {
+            this.byReturn = byReturn;
+        }
+
+        int day(int row) {
+            return byReturn ? returned[row] : borrowed[row];
+        }
+
+        void insert(int row) {
+            int at = upperBound(day(row));
+            if (at == count) {
+                rows = ensureCapacity(rows, count + 1);
+                rows[count++] = row;
+                return;
+            }
+            int[] copy = new int[Math.max(rows.length, count + 1)];
+            System.arraycopy(rows, 0, copy, 0, at);
+            copy[at] = row;
+            System.arraycopy(rows, at, copy, at + 1, count - at);
+            rows = copy;
+            count++;
+        }
+
+        // Sorts (day, row) pairs packed into longs; open rows are left out of the return-day index.
+        void rebuild(int[] source, int sourceCount) {
+            long[] keys = new long[sourceCount];
+            int n = 0;
+            for (int i = 0; i < sourceCount; i++) {
+                int row = source[i];
+                if (day(row) != OPEN) {
+                    keys[n++] = (long) day(row) << 32 | row;
+                }
+            }
+            Arrays.sort(keys, 0, n);
+            int[] sorted = new int[Math.max(16, n)];
+            for (int i = 0; i < n; i++) {
+                sorted[i] = (int) keys[i];
+            }
+            rows = sorted;
+            count = n;
+        }
+
+        Iterator<Transaction> range(int fromDay, int toDay) {
+            int[] snapshot = rows;
+            int start = lowerBound(fromDay);
+            int end = Math.max(start, upperBound(toDay));
+            return new Iterator<Transaction>() {
+                private int next = start;
+
+                @Override
+                public boolean hasNext() {
+                    return next < end;
+                }
+
+                @Override
+                public Transaction next() {
+                    if (next >= end) {
+                        throw new NoSuchElementException();
+                    }
+                    return new Transaction(TransactionLedger.this, snapshot[next++]);
+                }
+            };
+        }
+
+        // The first position whose day is at least the given one.
+        private int lowerBound(int day) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (day(rows[mid]) < day) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private int upperBound(int day) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (day(rows[mid]) <= day) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private int appendRow(String transactionId, String userId, String bookId, String dateBorrowed, String dateReturned, String dateDue) {
+        if (rows == ids.length) {
+            int capacity = rows + (rows >> 1);
+            ids = Arrays.copyOf(ids, capacity);
+            userRefs = Arrays.copyOf(userRefs, capacity);
+            bookRefs = Arrays.copyOf(bookRefs, capacity);
+            borrowed = Arrays.copyOf(borrowed, capacity);
+            returned = Arrays.copyOf(returned, capacity);
+            due = Arrays.copyOf(due, capacity);
+            nextByUser = Arrays.copyOf(nextByUser, capacity);
+            nextByBook = Arrays.copyOf(nextByBook, capacity);
+        }
+        int row = rows++;
+        ids[row] = TransactionIdAllocator.parse(transactionId);
+        userRefs[row] = intern(userId);
+        bookRefs[row] = intern(bookId);
+        borrowed[row] = toEpochDay(dateBorrowed);
+        returned[row] = toEpochDay(dateReturned);
+        due[row] = toEpochDay(dateDue);
+        nextByUser[row] = NONE;
+        nextByBook[row] = NONE;
+        return row;
+    }
+
+    // User and book IDs share one string table; the list ends are kept per index.
+    private int intern(String value) {
+        int ref = find(value);
+        if (ref != NONE) {
+            return ref;
+        }
+        int next = stringCount++;
+        if (next == strings.length) {
+            int capacity = next + (next >> 1);
+            strings = Arrays.copyOf(strings, capacity);
+            userHeads = Arrays.copyOf(userHeads, capacity);
+            userTails = Arrays.copyOf(userTails, capacity);
+            bookHeads = Arrays.copyOf(bookHeads, capacity);
+            bookTails = Arrays.copyOf(bookTails, capacity);
+        }
+        strings[next] = value;
+        userHeads[next] = NONE;
+        userTails[next] = NONE;
+        bookHeads[next] = NONE;
+        bookTails[next] = NONE;
+        if (stringCount * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            for (int i = 0; i < stringCount; i++) {
+                slots[freeSlot(strings[i])] = i + 1;
+            }
+        } else {
+            slots[freeSlot(value)] = next + 1;
+        }
+        return next;
+    }
+
+    private int find(String value) {
+        int mask = slots.length - 1;
+        for (int i = mix(value.hashCode()) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (strings[slots[i] - 1].equals(value)) {
+                return slots[i] - 1;
+            }
+        }
+        return NONE;
+    }
+
+    private int freeSlot(String value) {
+        int mask = slots.length - 1;
+        int i = mix(value.hashCode()) & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void link(int row) {
+        insert(row, userRefs[row], userHeads, userTails, nextByUser);
+        insert(row, bookRefs[row], bookHeads, bookTails, nextByBook);
+    }
+
+    // Rows usually arrive in ID order and go on the tail; a late one walks the list to its place.
+    private void insert(int row, int ref, int[] heads, int[] tails, int[] next) {
+        int tail = tails[ref];
+        if (heads[ref] == NONE || ids[tail] <= ids[row]) {
+            if (heads[ref] == NONE) {
+                heads[ref] = row;
+            } else {
+                next[tail] = row;
+            }
+            tails[ref] = row;
+            next[row] = NONE;
+            return;
+        }
+        if (ids[heads[ref]] > ids[row]) {
+            next[row] = heads[ref];
+            heads[ref] = row;
+            return;
+        }
+        int before = heads[ref];
+        while (ids[next[before]] <= ids[row]) {
+            before = next[before];
+        }
+        next[row] = next[before];
+        next[before] = row;
+    }
+
+    private List<Transaction> collect(String id, int[] heads, int[] next) {
+        int ref = find(id);
+        List<Transaction> found = new ArrayList<>();
+        for (int row = ref == NONE ? NONE : heads[ref]; row != NONE; row = next[row]) {
+            found.add(new Transaction(this, row));
+        }
+        return found;
+    }
+
+    // Stable, so among rows with equal IDs the one appended first comes first.
+    private void mergeSort(int[] a, int[] scratch, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, scratch, from, mid);
+        mergeSort(a, scratch, mid, to);
+        if (ids[a[mid - 1]] <= ids[a[mid]]) {
+            return;
+        }
+        System.arraycopy(a, from, scratch, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && ids[scratch[i]] <= ids[scratch[j]])) {
+                a[k] = scratch[i++];
+            } else {
+                a[k] = scratch[j++];
+            }
+        }
+    }
+
+    private String toDateString(int epochDay) {
+        if (epochDay == OPEN) {
+            return "null";
+        }
+        return dateStrings.computeIfAbsent(epochDay, day -> LocalDate.ofEpochDay(day).toString());
+    }
+
+    // Dates are written as yyyy-MM-dd; that shape is decoded by hand, anything else goes through LocalDate.
+    private static int toEpochDay(String date) {
+        if (date == null || date.equals("null")) {
+            return OPEN;
+        }
+        if (date.length() == 10 && date.charAt(4) == '-' && date.charAt(7) == '-') {
+            int year = digits(date, 0, 4);
+            int month = digits(date, 5, 7);
+            int day = digits(date, 8, 10);
+            if (year >= 0 && month >= 0 && day >= 0) {
+                return (int) LocalDate.of(year, month, day).toEpochDay();
+            }
+        }
+        return (int) LocalDate.parse(date).toEpochDay();
+    }
+
+    private static int digits(String s, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int[] ensureCapacity(int[] array, int needed) {
+        return needed <= array.length ? array : Arrays.copyOf(array, Math.max(needed, array.length * 2));
+    }
+
+    private static long loanKey(int userRef, int bookRef) {
+        return (long) userRef << 32 | (bookRef & 0xFFFFFFFFL);
+    }
+}
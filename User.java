@@ -15,7 +15,12 @@ public class User extends Person {
     
     @Override
     public void displayInfo() {
-        System.out.println("UserID: " + id + " | Name: " + name + " | Role: " + role + " | Books Borrowed: " + borrowedBooks.size());
+        System.out.println(toString());
+    }
+    
+    @Override
+    public String toString() {
+        return "UserID: " + id + " | Name: " + name + " | Role: " + role + " | Books Borrowed: " + getBorrowedCount();
     }
     
     public String getPassword() { 
@@ -26,8 +31,17 @@ public class User extends Person {
         return role; 
     }
     
-    public ArrayList<String> getBorrowedBooks() { 
-        return borrowedBooks; 
+    // A copy, so callers can iterate while other sessions borrow and return for this user.
+    public synchronized ArrayList<String> getBorrowedBooks() { 
+        return new ArrayList<>(borrowedBooks); 
+    }
+    
+    public synchronized int getBorrowedCount() {
+        return borrowedBooks.size();
+    }
+    
+    public synchronized boolean hasBorrowed(String bookId) {
+        return borrowedBooks.contains(bookId);
     }
     
     public void setPassword(String password) { 
@@ -38,15 +52,27 @@ public class User extends Person {
         this.role = role; 
     }
     
-    public void addBorrowedBook(String bookId) {
+    public synchronized void addBorrowedBook(String bookId) {
+        if (!borrowedBooks.contains(bookId)) {
+            borrowedBooks.add(bookId);
+        }
+    }
+    
+    // Checks the borrowing limit and records the book in one step. False if the book is already
+    // recorded, so a caller that rolls back on a later failure only removes what it added.
+    public synchronized boolean tryAddBorrowedBook(String bookId, int limit) {
+        if (borrowedBooks.size() >= limit || borrowedBooks.contains(bookId)) {
+            return false;
+        }
         borrowedBooks.add(bookId);
+        return true;
     }
     
-    public void removeBorrowedBook(String bookId) {
+    public synchronized void removeBorrowedBook(String bookId) {
         borrowedBooks.remove(bookId);
     }
     
     public String toFileString() {
-        return id + "," + name + "," + password + "," + role;
+        return CsvLoader.format(id, name, password, role);
     }
 }
\ No newline at end of file
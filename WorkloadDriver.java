@@ -0,0 +1,245 @@
+// WorkloadDriver.java - Replays a mixed library workload at a target rate for capacity testing
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Loads the data files in the working directory (typically written by SyntheticData) and calls
+// LibrarySystem directly from worker threads, with no menu or network in between. Each worker has
+// a fixed schedule of start times, so when the library falls behind the queueing delay is counted
+// in the latency rather than hidden by waiting for the previous call.
+//
+//   java WorkloadDriver <seconds> <target ops/sec> [threads]
+//
+// The mix is set by -Dworkload.borrow, -Dworkload.return, -Dworkload.search and -Dworkload.admin
+// (relative weights, default 30/30/35/5). Borrowed books are drawn with the same Zipf ranking as
+// SyntheticData (-Dsynthetic.zipf, -Dsynthetic.seed). Admin operations are catalogue edits and
+// additions. The run changes the data in the working directory like any other session.
+public class WorkloadDriver {
+    private static final int BORROW = Integer.getInteger("workload.borrow", 30);
+    private static final int RETURN = Integer.getInteger("workload.return", 30);
+    private static final int SEARCH = Integer.getInteger("workload.search", 35);
+    private static final int ADMIN = Integer.getInteger("workload.admin", 5);
+    private static final long REPORT_NANOS = 10_000_000_000L;
+
+    private final LibrarySystem library;
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Timer borrowTimer = metrics.timer("borrow");
+    private final Metrics.Timer returnTimer = metrics.timer("return");
+    private final Metrics.Timer searchTimer = metrics.timer("search");
+    private final Metrics.Timer adminTimer = metrics.timer("admin");
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong();
+    private final AtomicLong addedBooks = new AtomicLong();
+    private final Queue<Loan> openLoans = new ConcurrentLinkedQueue<>();
+    private final User[] users;
+    private final String[] bookIds;
+    private final int[] ranking;
+    private final SyntheticData.Zipf popularity;
+    private final SyntheticData.Zipf terms = new SyntheticData.Zipf(SyntheticData.VOCABULARY, 1.0);
+
+    private static class Loan {
+        final User user;
+        final String bookId;
+
+        Loan(User user, String bookId) {
+            this.user = user;
+            this.bookId = bookId;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java WorkloadDriver <seconds> <target ops/sec> [threads]");
+            return;
+        }
+        int seconds = Integer.parseInt(args[0]);
+        double rate = Double.parseDouble(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors() * 2;
+
+        LibrarySystem library = new LibrarySystem();
+        long loadStart = System.nanoTime();
+        library.loadData();
+        System.out.println("Loaded in " + (System.nanoTime() - loadStart) / 1000000 + " ms.");
+        new WorkloadDriver(library).run(seconds, rate, threads);
+        library.shutdown();
+        System.exit(0);
+    }
+
+    public WorkloadDriver(LibrarySystem library) {
+        this.library = library;
+        List<User> all = library.getUsers();
+        this.users = all.toArray(new User[0]);
+        List<Book> books = library.getBooks();
+        this.bookIds = new String[books.size()];
+        for (int i = 0; i < bookIds.length; i++) {
+            bookIds[i] = books.get(i).getBookId();
+        }
+        // Books are listed in file order, so for SyntheticData catalogues this is the generator's ranking.
+        this.ranking = SyntheticData.popularityRanking(bookIds.length, Long.getLong("synthetic.seed", 42L));
+        this.popularity = new SyntheticData.Zipf(bookIds.length, Double.parseDouble(System.getProperty("synthetic.zipf", "1.0")));
+        for (User user : all) {
+            for (String bookId : user.getBorrowedBooks()) {
+                openLoans.add(new Loan(user, bookId));
+            }
+        }
+    }
+
+    public void run(int seconds, double rate, int threads) throws InterruptedException {
+        System.out.println("Running " + seconds + " s at " + rate + " ops/sec on " + threads + " threads, mix borrow/return/search/admin "
+                + BORROW + "/" + RETURN + "/" + SEARCH + "/" + ADMIN + ".");
+        long intervalNanos = (long) (threads * 1e9 / rate);
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            // Workers are staggered across one interval so their calls do not arrive together.
+            long first = start + intervalNanos * t / threads;
+            Thread worker = new Thread(() -> work(new Random(seed), first, intervalNanos, end), "workload-" + t);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long nextReport = start + REPORT_NANOS;
+        long lastCount = 0;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                worker.join(200);
+                long now = System.nanoTime();
+                if (now >= nextReport) {
+                    long count = completed();
+                    System.out.printf("%5.0f s: %8.0f ops/sec%n", (now - start) / 1e9, (count - lastCount) / (REPORT_NANOS / 1e9));
+                    lastCount = count;
+                    nextReport += REPORT_NANOS;
+                }
+            }
+        }
+        report((end - start) / 1e9, rate);
+    }
+
+    private void work(Random random, long first, long intervalNanos, long end) {
+        int total = BORROW + RETURN + SEARCH + ADMIN;
+        long scheduled = first;
+        // Calls still queued at the end are counted as missed, not run late.
+        for (; scheduled < end && System.nanoTime() < end; scheduled += intervalNanos) {
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int pick = random.nextInt(total);
+            try {
+                if (pick < BORROW) {
+                    borrow(random, scheduled);
+                } else if (pick < BORROW + RETURN) {
+                    giveBack(scheduled);
+                } else if (pick < BORROW + RETURN + SEARCH) {
+                    search(random, scheduled);
+                } else {
+                    admin(random, scheduled);
+                }
+            } catch (InvalidOperationException e) {
+                failed.incrementAndGet();
+            }
+        }
+        if (scheduled < end) {
+            missed.addAndGet((end - scheduled + intervalNanos - 1) / intervalNanos);
+        }
+    }
+
+    private void borrow(Random random, long scheduled) {
+        User user = users[random.nextInt(users.length)];
+        String bookId = bookIds[ranking[popularity.next(random)] - 1];
+        try {
+            library.borrowBook(user, bookId);
+            openLoans.add(new Loan(user, bookId));
+        } catch (BookUnavailableException | InvalidOperationException e) {
+            // Popular books are often out and busy users are at their limit; both are normal outcomes.
+            refused.incrementAndGet();
+        } finally {
+            borrowTimer.record(scheduled);
+        }
+    }
+
+    private void giveBack(long scheduled) throws InvalidOperationException {
+        Loan loan = openLoans.poll();
+        try {
+            if (loan != null) {
+                library.returnBook(loan.user, loan.bookId);
+            }
+        } finally {
+            returnTimer.record(scheduled);
+        }
+    }
+
+    private void search(Random random, long scheduled) {
+        // Query words follow a Zipf distribution too: most searches are for common terms.
+        String query = SyntheticData.word(terms.next(random));
+        try {
+            library.searchBooks(query, SearchIndex.Field.ANY);
+        } finally {
+            searchTimer.record(scheduled);
+        }
+    }
+
+    private void admin(Random random, long scheduled) throws InvalidOperationException {
+        try {
+            if (random.nextInt(10) < 7) {
+                Book book = library.findBookById(bookIds[random.nextInt(bookIds.length)]);
+                if (book != null) {
+                    library.updateBook(book.getBookId(), book.getTitle(), book.getAuthor() + (book.getAuthor().endsWith(" Jr.") ? "" : " Jr."));
+                }
+            } else {
+                String id = "W" + Thread.currentThread().getId() + "-" + addedBooks.incrementAndGet();
+                library.addBook(id, "Workload " + SyntheticData.word(random.nextInt(SyntheticData.VOCABULARY)), "Driver");
+            }
+        } finally {
+            adminTimer.record(scheduled);
+        }
+    }
+
+    private long completed() {
+        return borrowTimer.count() + returnTimer.count() + searchTimer.count() + adminTimer.count();
+    }
+
+    private void report(double elapsed, double rate) {
+        long count = completed();
+        System.out.println("\n========================================");
+        System.out.println("          WORKLOAD SUMMARY");
+        System.out.println("========================================");
+        System.out.printf("Target %.0f ops/sec, sustained %.0f ops/sec over %.1f s (%d operations)%n", rate, count / elapsed, elapsed, count);
+        System.out.println("Refused borrows (unavailable or at limit): " + refused.get() + ", other failures: " + failed.get()
+                + ", missed (not started by the end): " + missed.get());
+        System.out.println("Latency from scheduled start, in ms:");
+        System.out.println(String.format("%-8s %10s %9s %9s %9s %9s %9s", "Op", "Count", "p50", "p90", "p99", "p99.9", "Max"));
+        for (Metrics.Timer timer : Arrays.asList(borrowTimer, returnTimer, searchTimer, adminTimer)) {
+            System.out.println(String.format("%-8s %10d %9.3f %9.3f %9.3f %9.3f %9.3f", timer.getName(), timer.count(),
+                    timer.percentileNanos(50) / 1e6, timer.percentileNanos(90) / 1e6, timer.percentileNanos(99) / 1e6,
+                    timer.percentileNanos(99.9) / 1e6, timer.maxNanos() / 1e6));
+        }
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        long collections = 0;
+        long collectionMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, gc.getCollectionCount());
+            collectionMillis += Math.max(0, gc.getCollectionTime());
+        }
+        System.gc();
+        long live = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.printf("Heap: %d MB live after GC, %d MB peak, %d MB max; %d collections, %d ms in GC%n",
+                live >> 20, peak >> 20, Runtime.getRuntime().maxMemory() >> 20, collections, collectionMillis);
+        System.out.println("========================================");
+    }
+}